@@ -4,18 +4,48 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Adder implements Runnable
 {
+	/**
+	 * Marks the start of a frame. A frame consists of the marker, the type of
+	 * the frame and its fields. Every other integer is a plain number.
+	 */
+	public static final int FRAME_MARKER = Integer.MIN_VALUE;
+	public static final int FRAME_INT_KEY = 1;	// int key, int value.
+	public static final int FRAME_LONG_KEY = 2;	// long key, int value.
+	public static final int FRAME_HELLO = 3;	// long stream id.
+	public static final int FRAME_BATCH = 4;	// int length, 'length' values.
+	public static final int MAX_BATCH = 1 << 20;	// maximum batch length.
+	private static final int RANK_INTERVAL = 1024;	// numbers per ranking update.
+	public static final int WINDOW_BUCKETS = 60;	// buckets of the windows.
+	public static final long WINDOW_INTERVAL = 1000;	// length of a bucket in ms.
+	
 	final private ServerSocket serverSocket;	// local server socket.
-	private Socket socket;						// local socket.
-	private int sum, numbers;					// sum and amount of numbers.
+	final private CopyOnWriteArrayList<Producer> producers;	// connected producers.
+	final private ConcurrentHashMap<Long, Producer> streams;	// resumable streams.
+	final private Set<Socket> connections;		// open producer sockets.
+	final private boolean offHeapKeys;			// keyed sums outside the heap.
+	private volatile AdderRanking bySum, byNumbers;	// rankings of the adder or null.
+	private volatile int rank;					// index of the adder in the rankings.
 	
 	public Adder() throws IOException
+	{
+		this(false);
+	}
+	
+	public Adder(boolean offHeapKeys) throws IOException
 	{
 		this.serverSocket = new ServerSocket(0);
-		this.sum = 0;
-		this.numbers = 0;
+		this.producers = new CopyOnWriteArrayList<>();
+		this.streams = new ConcurrentHashMap<>();
+		this.connections = ConcurrentHashMap.newKeySet();
+		this.offHeapKeys = offHeapKeys;
 		
 		System.out.println(String.format("A new adder created at port"
 				+ " %d.", serverSocket.getLocalPort()));
@@ -27,9 +57,90 @@ public class Adder implements Runnable
 	 */
 	public int getNumbers()
 	{
+		int numbers = 0;
+		
+		for (Producer producer : producers)
+			numbers += producer.numbers;
+		
+		return numbers;
+	}
+	
+	/**
+	 * Returns the sum of the integers received by the adder for 'key'.
+	 * @param key the key.
+	 * @return the sum of the integers received for 'key'.
+	 */
+	public long getKeySum(long key)
+	{
+		long sum = 0;
+		
+		for (Producer producer : producers)
+			if (producer.keys != null)
+				sum += producer.keys.sum(key);
+		
+		return sum;
+	}
+	
+	/**
+	 * Returns the amount of integers received by the adder for 'key'.
+	 * @param key the key.
+	 * @return the amount of integers received for 'key'.
+	 */
+	public long getKeyNumbers(long key)
+	{
+		long numbers = 0;
+		
+		for (Producer producer : producers)
+			if (producer.keys != null)
+				numbers += producer.keys.count(key);
+		
 		return numbers;
 	}
 	
+	/**
+	 * Adds the keyed sums of every producer of the adder to 'target'.
+	 * @param target the map to merge into.
+	 */
+	public void mergeKeys(KeyedSums target)
+	{
+		for (Producer producer : producers)
+			if (producer.keys != null)
+				producer.keys.mergeInto(target);
+	}
+	
+	/**
+	 * Reports every change of the sum and the amount of numbers of the adder
+	 * to 'bySum' and 'byNumbers', in which the adder has 'index'.
+	 * @param index the index of the adder in the rankings, starting from 0.
+	 * @param bySum the ranking by sum.
+	 * @param byNumbers the ranking by amount of numbers.
+	 */
+	public void setRanking(int index, AdderRanking bySum, AdderRanking byNumbers)
+	{
+		this.rank = index;
+		this.byNumbers = byNumbers;
+		this.bySum = bySum;
+	}
+	
+	/**
+	 * Moves the adder within its rankings after its sum changed by 'sum' and
+	 * its amount of numbers by 'numbers'. The rankings are shared by all of
+	 * the adders of a handler, so the producers only report their changes
+	 * every RANK_INTERVAL numbers and whenever they wait for more.
+	 * @param sum the change of the sum.
+	 * @param numbers the change of the amount of numbers.
+	 */
+	private void ranked(long sum, int numbers)
+	{
+		AdderRanking bySum = this.bySum, byNumbers = this.byNumbers;
+		
+		if (bySum != null)
+			bySum.add(rank, sum);
+		
+		if (byNumbers != null)
+			byNumbers.add(rank, numbers);
+	}
+	
 	/**
 	 * Returns the port at which the adder is running.
 	 * @return the port at which the adder is running.
@@ -39,18 +150,92 @@ public class Adder implements Runnable
 		return serverSocket.getLocalPort();
 	}
 	
+	/**
+	 * Returns the amount of producers that have connected to the adder.
+	 * @return the amount of producers that have connected to the adder.
+	 */
+	public int getProducers()
+	{
+		return producers.size();
+	}
+	
+	/**
+	 * Returns the amount of producers whose streams have not yet ended.
+	 * @return the amount of producers whose streams have not yet ended.
+	 */
+	public int getActiveProducers()
+	{
+		int active = 0;
+		
+		for (Producer producer : producers)
+			if (!producer.ended)
+				active++;
+		
+		return active;
+	}
+	
 	/**
 	 * Returns the sum of the integers received by the adder.
 	 * @return the sum of the integers received by the adder.
 	 */
 	public int getSum()
 	{
-		return sum;
+		long sum = 0;
+		
+		for (Producer producer : producers)
+			sum += producer.sum;
+		
+		return (int) sum;
+	}
+	
+	/**
+	 * Returns the sum of the integers received by the adder during the last
+	 * 'seconds' seconds.
+	 * @param seconds the length of the window in seconds.
+	 * @return the sum of the integers received within the window.
+	 */
+	public int getWindowSum(int seconds)
+	{
+		long sum = 0;
+		
+		for (Producer producer : producers)
+			sum += producer.window.sum(seconds);
+		
+		return (int) sum;
+	}
+	
+	/**
+	 * Returns the amount of integers received by the adder during the last
+	 * 'seconds' seconds.
+	 * @param seconds the length of the window in seconds.
+	 * @return the amount of integers received within the window.
+	 */
+	public int getWindowNumbers(int seconds)
+	{
+		int numbers = 0;
+		
+		for (Producer producer : producers)
+			numbers += producer.window.count(seconds);
+		
+		return numbers;
+	}
+	
+	/**
+	 * Returns the amount of integers received by the adder per second during
+	 * the last 'seconds' seconds.
+	 * @param seconds the length of the window in seconds.
+	 * @return the amount of integers received per second within the window.
+	 */
+	public int getWindowRate(int seconds)
+	{
+		return SlidingWindow.rate(getWindowNumbers(seconds), seconds,
+				WINDOW_BUCKETS, WINDOW_INTERVAL);
 	}
 	
 	/**
-	 * Runs the adder. Receives a stream of integers from a server.
-	 * Counts the number of received integers and sums them up.
+	 * Runs the adder. Accepts connections from any number of producers until
+	 * the adder is closed and receives the stream of each of them in a new
+	 * thread.
 	 */
 	@Override
 	public void run()
@@ -60,52 +245,185 @@ public class Adder implements Runnable
 			// Lock this port indefinitely.
 			serverSocket.setSoTimeout(0);
 			
-			// Listen for an incoming connection and then close the serverSocket.
-			socket = serverSocket.accept();
-			serverSocket.close();
-			
-			// Lock this port indefinitely.
-			socket.setSoTimeout(0);
+			while (!serverSocket.isClosed())
+			{
+				// Listen for an incoming connection.
+				Socket socket = serverSocket.accept();
+				
+				// Lock this port indefinitely.
+				socket.setSoTimeout(0);
+				
+				// Receive the stream of the producer in a new thread.
+				connections.add(socket);
+				new Thread(() -> receive(socket)).start();
+			}
+		}
+		catch (SocketException e)
+		{
+			// The server socket was closed while listening.
+		}
+		catch (IOException e)
+		{
+			System.err.println(String.format("The adder at port %s "
+					+ "returned an error: %s", serverSocket.getLocalPort(),
+					e.getMessage()));
+			e.printStackTrace();
+		}
+		
+		try
+		{
+			close();
+		}
+		catch (IOException e)
+		{
 			
+		}
+	}
+	
+	/**
+	 * Receives a stream of integers from a producer. Counts the number of
+	 * received integers and sums them up until the stream ends with a zero or
+	 * is closed. The values of keyed frames are also summed up per key.
+	 * 
+	 * A stream that begins with a hello frame belongs to the resumable stream
+	 * of that id. The adder answers the hello frame with the amount of frames
+	 * of the stream received so far, so that after losing its connection the
+	 * producer can reconnect and continue right after the last number that
+	 * reached the adder.
+	 * @param socket the socket of the producer.
+	 */
+	private void receive(Socket socket)
+	{
+		Producer producer = null;
+		
+		// Buffers reused by every batch frame of the stream.
+		ByteBuffer batch = ByteBuffer.allocate(0);
+		long[] stats = new long[4];
+		
+		try
+		{
 			// Start object streams for input and output.
 			ObjectOutputStream outStream = new ObjectOutputStream(socket.getOutputStream());
 			ObjectInputStream inStream = new ObjectInputStream(socket.getInputStream());
-
+			
 			// Declare the value variable.
 			int value;
 			
 			while (true)
 			{
-				value = 0;
-			
 				try
 				{
-					value = inStream.readInt();					
+					// Report the changes to the rankings before waiting.
+					if (producer != null && inStream.available() == 0)
+						producer.rank();
+					
+					value = inStream.readInt();
 				}
 				catch (EOFException e)
 				{
 					System.out.println(String.format("The object input stream"
-							+ " of the adder at port %s has ended.", getPort()));
+							+ " of a producer of the adder at port %s has ended.",
+							getPort()));
+					break;
 				}
 				
-				if(value == 0)
+				// A zero ends the stream.
+				if (value == 0)
+				{
+					if (producer != null)
+						producer.end(socket);
+					
 					break;
+				}
+				
+				long key = 0;
+				boolean keyed = false, batched = false;
 				
-				sum += value;
-				numbers++;
+				if (value == FRAME_MARKER)
+				{
+					int type = inStream.readInt();
+					
+					switch (type)
+					{
+						// Attach the connection to a resumable stream and
+						// acknowledge the frames received so far.
+						case FRAME_HELLO:
+							if (producer != null)
+								throw new IOException("A hello frame must be"
+										+ " the first frame of a stream.");
+							producer = resume(inStream.readLong(), socket);
+							outStream.writeLong(producer.sequence);
+							outStream.flush();
+							continue;
+						// Read the key and the value of a keyed frame.
+						case FRAME_INT_KEY:
+							key = inStream.readInt();
+							break;
+						case FRAME_LONG_KEY:
+							key = inStream.readLong();
+							break;
+						// Read a whole batch at once and aggregate it.
+						case FRAME_BATCH:
+							int length = inStream.readInt();
+							
+							if (length < 0 || MAX_BATCH < length)
+								throw new IOException(String.format("Invalid"
+										+ " batch length %d.", length));
+							
+							if (batch.capacity() < length * Integer.BYTES)
+								batch = ByteBuffer.allocate(length * Integer.BYTES);
+							
+							inStream.readFully(batch.array(), 0, length * Integer.BYTES);
+							BatchKernel.aggregate(batch, 0, length, stats);
+							batched = true;
+							break;
+						default:
+							throw new IOException(String.format("Unknown"
+									+ " frame type %d.", type));
+					}
+					
+					if (!batched)
+					{
+						value = inStream.readInt();
+						keyed = true;
+					}
+				}
+				
+				// An anonymous stream gets its partial on its first number.
+				if (producer == null)
+				{
+					producer = new Producer(socket);
+					producers.add(producer);
+				}
+				
+				if (batched ? !producer.addBatch(socket, stats[BatchKernel.SUM],
+						(int) stats[BatchKernel.COUNT])
+						: !producer.add(socket, keyed, key, value))
+					break;
 			}
 		}
 		catch (IOException e)
 		{
-			System.err.println(String.format("The adder at port %s "
-					+ "returned an error: %s", serverSocket.getLocalPort(), 
-					e.getMessage()));
-			e.printStackTrace();
+			if (!socket.isClosed())
+			{
+				System.err.println(String.format("A producer of the adder at"
+						+ " port %s returned an error: %s", getPort(),
+						e.getMessage()));
+				e.printStackTrace();
+			}
 		}
 		
+		if (producer != null)
+			producer.rank();
+		
+		// Only an anonymous stream ends when its connection is lost.
+		if (producer != null && producer.id == -1)
+			producer.end(socket);
+		
 		try
 		{
-			close();
+			connections.remove(socket);
+			socket.close();
 		}
 		catch (IOException e)
 		{
@@ -113,17 +431,181 @@ public class Adder implements Runnable
 		}
 	}
 	
+	/**
+	 * Returns the partial of the resumable stream 'id', creating it if
+	 * necessary, and makes 'socket' its only connection. A previous connection
+	 * of the stream that has not noticed its loss yet is closed.
+	 * @param id the id of the stream.
+	 * @param socket the new connection of the stream.
+	 * @return the partial of the stream.
+	 * @throws IOException
+	 */
+	private Producer resume(long id, Socket socket) throws IOException
+	{
+		Producer producer = streams.computeIfAbsent(id, k -> {
+			Producer created = new Producer(k);
+			producers.add(created);
+			return created;
+		});
+		
+		Socket previous = producer.attach(socket);
+		
+		if (previous != null && previous != socket)
+			previous.close();
+		
+		return producer;
+	}
+	
 	/**
 	 * Closes the sockets of the adder.
 	 * @throws IOException
 	 */
 	public void close() throws IOException
 	{
-		if (socket != null && !socket.isClosed())
-			socket.close();
-		
 		if (serverSocket != null && !serverSocket.isClosed())
 			serverSocket.close();
+		
+		for (Socket socket : connections)
+			socket.close();
 	}
-
+	
+	/**
+	 * The partial aggregate of a single producer. Only the thread receiving
+	 * the stream of the producer writes to it, so the producers never contend
+	 * with each other; the partials are combined when the adder is read.
+	 */
+	private class Producer
+	{
+		private final long id;						// stream id or -1.
+		private final SlidingWindow window;			// per-second sums and amounts.
+		private volatile long sum;					// sum of the numbers.
+		private volatile int numbers;				// amount of numbers.
+		private volatile boolean ended;				// end of the stream reached.
+		private volatile KeyedSums keys;			// per-key sums and amounts.
+		private Socket owner;						// current connection.
+		private long sequence;						// amount of frames received.
+		private long unrankedSum;					// changes not yet reported
+		private int unrankedNumbers;				// to the rankings.
+		
+		/**
+		 * Creates the partial of an anonymous stream received over 'socket'.
+		 * @param socket the connection of the stream.
+		 */
+		public Producer(Socket socket)
+		{
+			this(-1);
+			this.owner = socket;
+		}
+		
+		/**
+		 * Creates the partial of the resumable stream 'id'.
+		 * @param id the id of the stream.
+		 */
+		public Producer(long id)
+		{
+			this.id = id;
+			this.window = new SlidingWindow(WINDOW_BUCKETS, WINDOW_INTERVAL);
+		}
+		
+		/**
+		 * Makes 'socket' the connection of the stream.
+		 * @param socket the new connection.
+		 * @return the previous connection or null.
+		 */
+		public synchronized Socket attach(Socket socket)
+		{
+			Socket previous = owner;
+			owner = socket;
+			ended = false;
+			
+			return previous;
+		}
+		
+		/**
+		 * Adds a number received over 'socket' to the partial, unless the
+		 * stream has since been resumed over another connection.
+		 * @param socket the connection the number was received over.
+		 * @param keyed whether the number belongs to 'key'.
+		 * @param key the key of the number.
+		 * @param value the number.
+		 * @return false if 'socket' is no longer the connection of the stream.
+		 */
+		public synchronized boolean add(Socket socket, boolean keyed, long key, int value)
+		{
+			if (owner != socket)
+				return false;
+			
+			if (keyed)
+			{
+				if (keys == null)
+					keys = new KeyedSums(64, offHeapKeys);
+				
+				keys.add(key, value);
+			}
+			
+			sum += value;
+			numbers++;
+			sequence++;
+			window.add(value);
+			unrankedSum += value;
+			
+			if (RANK_INTERVAL <= ++unrankedNumbers)
+				rank();
+			
+			return true;
+		}
+		
+		/**
+		 * Adds the sum of a batch of 'count' numbers received over 'socket' to
+		 * the partial, unless the stream has since been resumed over another
+		 * connection. The batch counts as a single frame of the stream.
+		 * @param socket the connection the batch was received over.
+		 * @param batchSum the sum of the numbers of the batch.
+		 * @param count the amount of numbers in the batch.
+		 * @return false if 'socket' is no longer the connection of the stream.
+		 */
+		public synchronized boolean addBatch(Socket socket, long batchSum, int count)
+		{
+			if (owner != socket)
+				return false;
+			
+			sum += batchSum;
+			numbers += count;
+			sequence++;
+			window.add(batchSum, count);
+			unrankedSum += batchSum;
+			unrankedNumbers += count;
+			
+			if (RANK_INTERVAL <= unrankedNumbers)
+				rank();
+			
+			return true;
+		}
+		
+		/**
+		 * Reports the changes of the partial since the previous report to the
+		 * rankings of the adder.
+		 */
+		public synchronized void rank()
+		{
+			if (unrankedNumbers == 0)
+				return;
+			
+			ranked(unrankedSum, unrankedNumbers);
+			unrankedSum = 0;
+			unrankedNumbers = 0;
+		}
+		
+		/**
+		 * Marks the stream as ended, unless it has since been resumed over
+		 * another connection.
+		 * @param socket the connection whose stream ended.
+		 */
+		public synchronized void end(Socket socket)
+		{
+			if (owner == socket)
+				ended = true;
+		}
+	}
+	
 }
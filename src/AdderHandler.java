@@ -8,6 +8,9 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 public class AdderHandler
 {
@@ -15,14 +18,31 @@ public class AdderHandler
 	private final int maxAttempts = 5;			// no of connection attempts.
 	private final int timeoutConnect = 5000;	// timeout in ms.
 	private final int timeoutCommand = 60000;	// timeout in ms.
+	private final int timeoutResume = 60000;	// timeout in ms.
+	private final int handlerId;				// id of the handler in rankings.
+	private final int sessionId;				// id of the session.
+	private int executed;						// commands executed in the session.
+	private int[] lastReply;					// reply to the last command.
 	
 	private String tcpPort;						// local TCP port.
 	private InetAddress serverAddress;			// target server address.
-	private Adder[] adders;						// array of summer adders.
+	private volatile Adder[] adders;			// array of summer adders.
+	private int retiredSum;						// sum of the retired adders.
+	private int retiredNumbers;					// numbers of the retired adders.
+	private KeyedSums retiredKeys;				// keyed sums of the retired adders.
+	private ArrayList<SumNotifier> notifiers;	// list of subscriptions.
+	private AdderRanking bySum, byNumbers;		// rankings of the adders.
 	private Socket socket;						// local socket.
+	private boolean offHeapKeys;				// keyed sums outside the heap.
 	
 	public AdderHandler(String tcpPort, String serverAddress)
 			throws InstantiationException, UnknownHostException
+	{
+		this(tcpPort, serverAddress, false);
+	}
+	
+	public AdderHandler(String tcpPort, String serverAddress, boolean offHeapKeys)
+			throws InstantiationException, UnknownHostException
 	{
 		// Check the number of arguments and ensure the first argument is an
 		// integer in range [1024, 65535].
@@ -34,6 +54,11 @@ public class AdderHandler
 		
 		this.tcpPort = tcpPort;
 		this.serverAddress = InetAddress.getByName(serverAddress);
+		this.notifiers = new ArrayList<>();
+		this.offHeapKeys = offHeapKeys;
+		this.handlerId = new Random().nextInt(Integer.MAX_VALUE);
+		this.retiredKeys = new KeyedSums(64, false);
+		this.sessionId = new Random().nextInt(Integer.MAX_VALUE);
 	}
 	
 	/**
@@ -63,7 +88,10 @@ public class AdderHandler
 			// Create the adders.
 			try
 			{
-				adders = createAdders(objInStream.readInt());
+				int count = objInStream.readInt();
+				bySum = new AdderRanking(handlerId, count);
+				byNumbers = new AdderRanking(handlerId, count);
+				adders = createAdders(count, 0);
 			}
 			catch (SocketTimeoutException ste)
 			{
@@ -81,45 +109,36 @@ public class AdderHandler
 				objOutStream.flush();
 			}
 			
-			// Wait for commands from the server. Set the socket timeout to
-			// 'timeoutCommand' seconds.
-			socket.setSoTimeout(timeoutCommand);
-			int cmd = 1, response = -1;
-			
-			while (cmd != 0)
+			// Wait for commands from the server. If the connection to the
+			// server is lost, wait for the server to resume the session.
+			while (true)
 			{
-				cmd = objInStream.readInt();
-				
-				switch (cmd)
+				try
 				{
-					// If the command is 0 (zero), close the output stream and
-				    // the adders.
-					case 0: objOutStream.close();
-							for (Adder adder : adders)
-					        	adder.close();
-					        break;
-					// If the command is 1 (one), respond with the current
-					// total sum.
-					case 1: response = 0;
-							for (Adder adder : adders)
-					        	response += adder.getSum();
-					        break;
-					// If the command is 2 (two), respond with the current
-					// largest sum out of all of the adders.
-					case 2: response = maxSumIndex(adders);
-							break;
-					// If the command is 3 (three), respond with the current
-					// total amount of received numbers.
-					case 3: response = 0;
-							for (Adder adder : adders)
-								response += adder.getNumbers();
-							break;
+					runCommands(objInStream, objOutStream);
+					break;
 				}
-				
-				if (cmd != 0)
+				catch (SocketTimeoutException ste)
 				{
-					objOutStream.writeInt(response);
-					objOutStream.flush();
+					// An idle server ends the session, it did not lose it.
+					System.err.println("The server did not send a command"
+							+ " within the allotted time.");
+					throw ste;
+				}
+				catch (IOException ioe)
+				{
+					System.err.println(String.format("The connection to the"
+							+ " server was lost: %s", ioe.getMessage()));
+					socket.close();
+					
+					Tuple<ObjectInputStream, ObjectOutputStream> streams =
+							awaitResume(serverSocket);
+					
+					if (streams == null)
+						throw ioe;
+					
+					objInStream = streams.first();
+					objOutStream = streams.last();
 				}
 			}
 		}
@@ -134,6 +153,10 @@ public class AdderHandler
 			if (socket != null)
 				socket.close();
 			
+			// Close the notifiers.
+			for (SumNotifier notifier : notifiers)
+				notifier.close();
+			
 			// Close each of the remaining adders.
 			if (adders != null)
 			{
@@ -152,6 +175,224 @@ public class AdderHandler
 		}
 	}
 	
+	/**
+	 * Receives commands from the server and responds to them until the
+	 * server sends the command 0 (zero). The commands of the session are
+	 * numbered from 1 in the order they are executed, and the reply to the
+	 * last one is kept so that it can be sent again when the session is
+	 * resumed.
+	 * @param objInStream the input stream of the connection to the server.
+	 * @param objOutStream the output stream of the connection to the server.
+	 * @throws IOException
+	 */
+	private void runCommands(ObjectInputStream objInStream,
+			ObjectOutputStream objOutStream)
+			throws IOException
+	{
+		// Wait for commands from the server. Set the socket timeout to
+		// 'timeoutCommand' seconds.
+		socket.setSoTimeout(timeoutCommand);
+		int cmd = 1, response = -1, index;
+		
+		while (cmd != 0)
+		{
+			cmd = objInStream.readInt();
+			
+			switch (cmd)
+			{
+				// If the command is 0 (zero), close the output stream and
+			    // the adders.
+				case 0: objOutStream.close();
+						for (Adder adder : adders)
+				        	if (adder != null)
+				        		adder.close();
+				        break;
+				// If the command is 1 (one), respond with the current
+				// total sum.
+				case 1: response = totalSum();
+				        break;
+				// If the command is 2 (two), respond with the index of the
+				// current largest sum out of all of the adders, or 0 if
+				// every adder has been retired.
+				case 2: response = maxSumIndex();
+						break;
+				// If the command is 3 (three), respond with the current
+				// total amount of received numbers.
+				case 3: response = totalNumbers();
+						break;
+				// If the command is 4 (four), read a window length in
+				// seconds and respond with the total sum within it.
+				case 4: response = windowSum(objInStream.readInt());
+						break;
+				// If the command is 5 (five), read a window length in
+				// seconds and respond with the total amount of numbers
+				// received per second within it.
+				case 5: response = windowRate(objInStream.readInt());
+						break;
+				// If the command is 6 (six), read an adder index and a
+				// window length in seconds and respond with the sum of
+				// that adder within the window.
+				case 6: index = objInStream.readInt();
+						response = windowSum(index, objInStream.readInt());
+						break;
+				// If the command is 7 (seven), read an adder index and a
+				// window length in seconds and respond with the amount of
+				// numbers received per second by that adder within it.
+				case 7: index = objInStream.readInt();
+						response = windowRate(index, objInStream.readInt());
+						break;
+				// If the command is 8 (eight), read a minimum update
+				// interval in ms and respond with the port of a new
+				// notifier that streams the changes of the totals.
+				case 8: response = subscribe(objInStream.readInt());
+						break;
+				// If the command is 9 (nine), read a key and respond
+				// with its total sum over all of the adders.
+				case 9: response = (int) keySum(objInStream.readLong());
+						break;
+				// If the command is 10 (ten), read a key and respond
+				// with its total amount of numbers over all of the adders.
+				case 10: response = (int) keyNumbers(objInStream.readLong());
+						break;
+				// If the command is 11 (eleven), respond with the amount
+				// of distinct keys over all of the adders.
+				case 11: response = keyCount();
+						break;
+				// If the command is 12 (twelve), read K and a metric
+				// (0 for the sum, 1 for the amount of numbers) and respond
+				// with the amount of adders M followed by M triples of the
+				// handler id, an adder index and its metric in descending
+				// order.
+				case 12: int k = objInStream.readInt();
+						long[][] top = topAdders(k, objInStream.readInt());
+						int[] entries = new int[1 + 3 * top.length];
+						entries[0] = top.length;
+						for (int i = 0; i < top.length; i++)
+							for (int j = 0; j < 3; j++)
+								entries[1 + 3 * i + j] = (int) top[i][j];
+						reply(objOutStream, entries);
+						continue;
+				// If the command is 13 (thirteen), read an amount N,
+				// create N new adders and respond with N followed by
+				// the ports of the new adders. The new adders are
+				// indexed after the existing ones.
+				case 13: Adder[] added = addAdders(objInStream.readInt());
+						int[] ports = new int[1 + added.length];
+						ports[0] = added.length;
+						for (int i = 0; i < added.length; i++)
+							ports[1 + i] = added[i].getPort();
+						reply(objOutStream, ports);
+						continue;
+				// If the command is 14 (fourteen), read an adder index,
+				// retire that adder and respond with 0, or with -1 if
+				// there is no such adder.
+				case 14: response = retireAdder(objInStream.readInt());
+						break;
+				// If the command is 15 (fifteen), respond with the id of
+				// the session, needed to resume the session later.
+				case 15: response = sessionId;
+						break;
+			}
+			
+			if (cmd != 0)
+				reply(objOutStream, response);
+		}
+	}
+	
+	/**
+	 * Counts a command as executed and sends its reply, keeping the reply in
+	 * case it is lost with the connection.
+	 * @param objOutStream the output stream of the connection to the server.
+	 * @param reply the integers of the reply.
+	 * @throws IOException
+	 */
+	private void reply(ObjectOutputStream objOutStream, int... reply)
+			throws IOException
+	{
+		executed++;
+		lastReply = reply;
+		
+		for (int value : reply)
+			objOutStream.writeInt(value);
+		
+		objOutStream.flush();
+	}
+	
+	/**
+	 * Waits for the server to resume the session after losing its connection.
+	 * A resuming server connects to the local TCP port and sends -2, the
+	 * session id and the number of the last command whose reply it received.
+	 * The handler responds with 0 and the number of the last command it
+	 * executed. If the server missed the reply to that command, the reply
+	 * follows, so that the command is not executed twice; otherwise the
+	 * server sends again any command the handler did not receive. The adders
+	 * keep running meanwhile, so nothing has to be regenerated. Connections
+	 * that do not resume this session are answered with -1 and closed.
+	 * @param serverSocket the ServerSocket used to receive the connection.
+	 * @return the input and output streams of the resumed connection or null
+	 * if the session was not resumed within 'timeoutResume' ms.
+	 * @throws IOException
+	 */
+	private Tuple<ObjectInputStream, ObjectOutputStream> awaitResume(
+			ServerSocket serverSocket)
+			throws IOException
+	{
+		long deadline = System.currentTimeMillis() + timeoutResume;
+		
+		while (System.currentTimeMillis() < deadline)
+		{
+			try
+			{
+				serverSocket.setSoTimeout((int) Math.max(1,
+						deadline - System.currentTimeMillis()));
+				socket = serverSocket.accept();
+				socket.setSoTimeout(timeoutConnect);
+				
+				ObjectInputStream objInStream = new ObjectInputStream(socket.getInputStream());
+				ObjectOutputStream objOutStream = new ObjectOutputStream(socket.getOutputStream());
+				
+				if (objInStream.readInt() == -2 && objInStream.readInt() == sessionId)
+				{
+					// At most the reply to the last command can be missing,
+					// as the server waits for each reply.
+					int acked = objInStream.readInt();
+					
+					if (acked == executed || acked == executed - 1)
+					{
+						objOutStream.writeInt(0);
+						objOutStream.writeInt(executed);
+						
+						if (acked < executed)
+							for (int value : lastReply)
+								objOutStream.writeInt(value);
+						
+						objOutStream.flush();
+						
+						System.out.println(String.format("Session %d resumed by"
+								+ " %s after command %d.", sessionId,
+								socket.getInetAddress().getHostAddress(), acked));
+						
+						return new Tuple<>(objInStream, objOutStream);
+					}
+				}
+				
+				objOutStream.writeInt(-1);
+				objOutStream.flush();
+				socket.close();
+			}
+			catch (SocketTimeoutException ste)
+			{
+				if (socket != null && !socket.isClosed())
+					socket.close();
+			}
+		}
+		
+		System.err.println(String.format("Session %d was not resumed within"
+				+ " the allotted time.", sessionId));
+		
+		return null;
+	}
+	
 	/**
 	 * Requests a TCP connection from the server by sending a local TCP port
 	 * number to the server over UDP.
@@ -215,12 +456,14 @@ public class AdderHandler
 	}
 	
 	/**
-	 * Creates the requested amount of adders.
+	 * Creates the requested amount of adders and ranks them, the first at
+	 * index 'first' (starting from 0) of the rankings, before they start.
 	 * @param count the amount of adders.
+	 * @param first the index of the first adder.
 	 * @return an array of adders of length 'count'.
 	 * @throws IOException
 	 */
-	private Adder[] createAdders(int count)
+	private Adder[] createAdders(int count, int first)
 			throws IOException
 	{
 		// Initialise a adder array.
@@ -230,7 +473,12 @@ public class AdderHandler
 		for (int i = 0; i < count; i++)
 		{
 			// Create a new adder.
-			Adder adder = new Adder();
+			Adder adder = new Adder(offHeapKeys);
+			
+			// Rank the new adder before it receives anything.
+			bySum.update(first + i, 0);
+			byNumbers.update(first + i, 0);
+			adder.setRanking(first + i, bySum, byNumbers);
 			
 			// Start the new adder in a new thread.
 			new Thread(adder).start();
@@ -243,31 +491,271 @@ public class AdderHandler
 	}
 	
 	/**
-	 * Finds the index of the maximum sum over an array of adders.
-	 * @param adders an array of adders
-	 * @return the index of the maximum sum from the adders of the array.
+	 * Creates 'count' new adders and appends them to the adders of the
+	 * session, so that the indices of the existing adders do not change.
+	 * @param count the amount of new adders.
+	 * @return an array of the new adders.
+	 * @throws IOException
+	 */
+	private Adder[] addAdders(int count)
+			throws IOException
+	{
+		Adder[] added = createAdders(Math.max(count, 0), adders.length);
+		Adder[] grown = Arrays.copyOf(adders, adders.length + added.length);
+		
+		System.arraycopy(added, 0, grown, adders.length, added.length);
+		adders = grown;
+		
+		return added;
+	}
+	
+	/**
+	 * Retires the adder at 'index' (starting from 1). The adder is closed,
+	 * its sum, amount of numbers and keyed sums are folded into those of the
+	 * retired adders and its slot is left empty, so that the indices of the
+	 * other adders do not change. The windowed sums and rates only cover the
+	 * adders still running.
+	 * @param index the index of the adder.
+	 * @return 0 if the adder was retired or -1 if there is no adder at
+	 * 'index'.
+	 * @throws IOException
 	 */
-	private int maxSumIndex(Adder[] adders)
+	private int retireAdder(int index)
+			throws IOException
 	{
-		// Set the maximum sum index initially as that of the first adder.
-		int maxInd = 0;
+		if (index < 1 || adders.length < index || adders[index - 1] == null)
+			return -1;
 		
-		// Iterate over the rest of the adders and replace the value of the
-		// index with that of a larger sum if one is found.
-		for (int i = 1; i < adders.length; i++)
+		Adder adder = adders[index - 1];
+		adder.close();
+		
+		// Fold the aggregates of the adder into those of the retired adders
+		// and remove it in one step under the lock of the totals, so that
+		// they count it exactly once.
+		synchronized (this)
 		{
-			if (adders[maxInd].getSum() < adders[i].getSum())
+			adder.mergeKeys(retiredKeys);
+			retiredNumbers += adder.getNumbers();
+			retiredSum += adder.getSum();
+			
+			Adder[] remaining = adders.clone();
+			remaining[index - 1] = null;
+			adders = remaining;
+		}
+		
+		bySum.remove(index - 1);
+		byNumbers.remove(index - 1);
+		
+		System.out.println(String.format("The adder at port %s has been"
+				+ " retired.", adder.getPort()));
+		
+		return 0;
+	}
+	
+	/**
+	 * Creates a notifier that streams the changes of the totals at most once
+	 * every 'interval' ms and starts it in a new thread.
+	 * @param interval the minimum interval between two updates in ms.
+	 * @return the port of the notifier.
+	 * @throws IOException
+	 */
+	private int subscribe(int interval)
+			throws IOException
+	{
+		SumNotifier notifier = new SumNotifier(this, interval);
+		new Thread(notifier).start();
+		notifiers.add(notifier);
+		
+		return notifier.getPort();
+	}
+	
+	/**
+	 * Returns the current total sum of the adders.
+	 * @return the current total sum of the adders.
+	 */
+	synchronized int totalSum()
+	{
+		int sum = retiredSum;
+		
+		for (Adder adder : adders)
+			if (adder != null)
+				sum += adder.getSum();
+		
+		return sum;
+	}
+	
+	/**
+	 * Returns the current total amount of numbers received by the adders.
+	 * @return the current total amount of numbers received by the adders.
+	 */
+	synchronized int totalNumbers()
+	{
+		int numbers = retiredNumbers;
+		
+		for (Adder adder : adders)
+			if (adder != null)
+				numbers += adder.getNumbers();
+		
+		return numbers;
+	}
+	
+	/**
+	 * Returns the top 'k' adders by a metric. The adders move within the
+	 * rankings as they receive numbers, so the query only reads the heap.
+	 * @param k the maximum amount of adders.
+	 * @param metric 0 for the sum, 1 for the amount of numbers.
+	 * @return at most 'k' entries of the handler id, an adder index and its
+	 * metric.
+	 */
+	private long[][] topAdders(int k, int metric)
+	{
+		return (metric == 1 ? byNumbers : bySum).top(k);
+	}
+	
+	/**
+	 * Returns the total sum of 'key' over the adders.
+	 * @param key the key.
+	 * @return the total sum of 'key'.
+	 */
+	private synchronized long keySum(long key)
+	{
+		long sum = retiredKeys.sum(key);
+		
+		for (Adder adder : adders)
+			if (adder != null)
+				sum += adder.getKeySum(key);
+		
+		return sum;
+	}
+	
+	/**
+	 * Returns the total amount of numbers of 'key' over the adders.
+	 * @param key the key.
+	 * @return the total amount of numbers of 'key'.
+	 */
+	private synchronized long keyNumbers(long key)
+	{
+		long numbers = retiredKeys.count(key);
+		
+		for (Adder adder : adders)
+			if (adder != null)
+				numbers += adder.getKeyNumbers(key);
+		
+		return numbers;
+	}
+	
+	/**
+	 * Returns the amount of distinct keys over the adders.
+	 * @return the amount of distinct keys.
+	 */
+	private synchronized int keyCount()
+	{
+		KeyedSums merged = new KeyedSums(64, false);
+		retiredKeys.mergeInto(merged);
+		
+		for (Adder adder : adders)
+			if (adder != null)
+				adder.mergeKeys(merged);
+		
+		return merged.size();
+	}
+	
+	/**
+	 * Finds the index of the maximum sum over the adders.
+	 * @return the index of the maximum sum from the adders, starting from 1,
+	 * or 0 if every adder has been retired.
+	 */
+	int maxSumIndex()
+	{
+		Adder[] adders = this.adders;
+		
+		// Iterate over the adders that have not been retired and replace
+		// the index with that of a larger sum if one is found.
+		int maxInd = -1;
+		
+		for (int i = 0; i < adders.length; i++)
+		{
+			if (adders[i] != null
+					&& (maxInd == -1 || adders[maxInd].getSum() < adders[i].getSum()))
 				maxInd = i;
 		}
 		
 		return maxInd + 1;
 	}
 	
+	/**
+	 * Returns the total sum received by the adders during the last 'seconds'
+	 * seconds.
+	 * @param seconds the length of the window in seconds.
+	 * @return the total sum within the window.
+	 */
+	private int windowSum(int seconds)
+	{
+		int sum = 0;
+		
+		for (Adder adder : adders)
+			if (adder != null)
+				sum += adder.getWindowSum(seconds);
+		
+		return sum;
+	}
+	
+	/**
+	 * Returns the sum received by the adder at 'index' (starting from 1)
+	 * during the last 'seconds' seconds.
+	 * @param index the index of the adder.
+	 * @param seconds the length of the window in seconds.
+	 * @return the sum of the adder within the window or -1 if there is no
+	 * adder at 'index'.
+	 */
+	private int windowSum(int index, int seconds)
+	{
+		if (index < 1 || adders.length < index || adders[index - 1] == null)
+			return -1;
+		
+		return adders[index - 1].getWindowSum(seconds);
+	}
+	
+	/**
+	 * Returns the total amount of numbers received by the adders per second
+	 * during the last 'seconds' seconds.
+	 * @param seconds the length of the window in seconds.
+	 * @return the total amount of numbers per second within the window.
+	 */
+	private int windowRate(int seconds)
+	{
+		long numbers = 0;
+		
+		for (Adder adder : adders)
+			if (adder != null)
+				numbers += adder.getWindowNumbers(seconds);
+		
+		return SlidingWindow.rate(numbers, seconds, Adder.WINDOW_BUCKETS,
+				Adder.WINDOW_INTERVAL);
+	}
+	
+	/**
+	 * Returns the amount of numbers received per second by the adder at
+	 * 'index' (starting from 1) during the last 'seconds' seconds.
+	 * @param index the index of the adder.
+	 * @param seconds the length of the window in seconds.
+	 * @return the amount of numbers per second of the adder within the window
+	 * or -1 if there is no adder at 'index'.
+	 */
+	private int windowRate(int index, int seconds)
+	{
+		if (index < 1 || adders.length < index || adders[index - 1] == null)
+			return -1;
+		
+		return adders[index - 1].getWindowRate(seconds);
+	}
+	
 	public static void main(String[] args)
 	{
 		try
 		{
-			AdderHandler adder = new AdderHandler(args[0], args[1]);
+			AdderHandler adder = new AdderHandler(args[0], args[1],
+					args.length > 2 && args[2].equals("offheap"));
 			adder.run();
 		}
 		catch (Exception e)
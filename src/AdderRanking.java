@@ -0,0 +1,279 @@
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Ranks adders by a metric (e.g. the sum or the amount of numbers) in an
+ * indexed binary max-heap. Changing the metric of one adder only moves that
+ * adder within the heap, and the top K adders are found by visiting at most
+ * 2K nodes of the heap, so the adders are never sorted as a whole. Ties are
+ * broken in favour of the smaller index.
+ * 
+ * Every entry of a result names the handler of the adder, so that the partial
+ * results of different handlers can be merged without mixing up adders of the
+ * same index.
+ */
+public class AdderRanking
+{
+	private final int handler;					// id of the handler of the adders.
+	private int[] heap;							// adder indices in heap order.
+	private int[] position;						// heap position of each adder.
+	private long[] values;						// metric of each adder.
+	private int size;							// amount of ranked adders.
+	
+	/**
+	 * Creates an empty ranking of the adders of 'handler' with room for
+	 * 'capacity' adders.
+	 * @param handler the id of the handler of the adders.
+	 * @param capacity the initial amount of adders.
+	 */
+	public AdderRanking(int handler, int capacity)
+	{
+		this.handler = handler;
+		this.heap = new int[Math.max(capacity, 1)];
+		this.position = new int[heap.length];
+		this.values = new long[heap.length];
+		this.size = 0;
+		
+		for (int i = 0; i < position.length; i++)
+			position[i] = -1;
+	}
+	
+	/**
+	 * Returns whether the adder at 'index', starting from 0, is ranked.
+	 * @param index the index of the adder.
+	 * @return true if the adder is ranked.
+	 */
+	public synchronized boolean contains(int index)
+	{
+		return index < position.length && position[index] != -1;
+	}
+	
+	/**
+	 * Returns the ranked metric of the adder at 'index', starting from 0.
+	 * @param index the index of the adder.
+	 * @return the metric of the adder or 0 if it is not ranked.
+	 */
+	public synchronized long get(int index)
+	{
+		return index < values.length ? values[index] : 0;
+	}
+	
+	/**
+	 * Sets the metric of the adder at 'index', starting from 0, and moves it
+	 * to its place in the heap. An adder not yet ranked is added.
+	 * @param index the index of the adder.
+	 * @param value the new metric of the adder.
+	 */
+	public synchronized void update(int index, long value)
+	{
+		// Make room for a new adder.
+		if (position.length <= index)
+			grow(Math.max(index + 1, 2 * position.length));
+		
+		values[index] = value;
+		
+		if (position[index] == -1)
+		{
+			heap[size] = index;
+			position[index] = size;
+			siftUp(size++);
+		}
+		else
+		{
+			siftUp(position[index]);
+			siftDown(position[index]);
+		}
+	}
+	
+	/**
+	 * Adds 'delta' to the metric of the adder at 'index', starting from 0, and
+	 * moves it to its place in the heap. An adder that is not ranked, e.g. a
+	 * retired one, is left out.
+	 * @param index the index of the adder.
+	 * @param delta the change of the metric of the adder.
+	 */
+	public synchronized void add(int index, long delta)
+	{
+		if (position.length <= index || position[index] == -1 || delta == 0)
+			return;
+		
+		values[index] += delta;
+		
+		if (0 < delta)
+			siftUp(position[index]);
+		else
+			siftDown(position[index]);
+	}
+	
+	/**
+	 * Removes the adder at 'index', starting from 0, from the ranking.
+	 * @param index the index of the adder.
+	 */
+	public synchronized void remove(int index)
+	{
+		if (position.length <= index || position[index] == -1)
+			return;
+		
+		int pos = position[index];
+		position[index] = -1;
+		values[index] = 0;
+		
+		// Move the last node into the hole and restore the heap.
+		if (pos != --size)
+		{
+			heap[pos] = heap[size];
+			position[heap[pos]] = pos;
+			siftUp(pos);
+			siftDown(position[heap[pos]]);
+		}
+	}
+	
+	/**
+	 * Returns the top 'k' adders as (handler, index, metric) entries in
+	 * descending order of the metric. The indices start from 1.
+	 * @param k the maximum amount of adders.
+	 * @return an array of at most 'k' entries.
+	 */
+	public synchronized long[][] top(int k)
+	{
+		long[][] top = new long[Math.max(0, Math.min(k, size))][];
+		
+		// Visit the heap best-first: the next best adder is always either a
+		// child of an adder already taken or still among the candidates.
+		PriorityQueue<Integer> candidates = new PriorityQueue<>(
+				(a, b) -> before(heap[a], heap[b]) ? -1 : 1);
+		
+		if (0 < top.length)
+			candidates.add(0);
+		
+		for (int i = 0; i < top.length; i++)
+		{
+			int pos = candidates.poll();
+			top[i] = new long[] { handler, heap[pos] + 1, values[heap[pos]] };
+			
+			if (2 * pos + 1 < size)
+				candidates.add(2 * pos + 1);
+			
+			if (2 * pos + 2 < size)
+				candidates.add(2 * pos + 2);
+		}
+		
+		return top;
+	}
+	
+	/**
+	 * Merges two partial top-K results, e.g. of two different handlers, into
+	 * the top 'k' entries of both. Each partial must be in descending order of
+	 * the metric, as returned by top(). Entries of equal metric are ordered by
+	 * handler and then by index, as within a ranking, so the result does not
+	 * depend on the order in which the partials are merged.
+	 * @param a the first partial result.
+	 * @param b the second partial result.
+	 * @param k the maximum amount of entries.
+	 * @return an array of at most 'k' entries.
+	 */
+	public static long[][] merge(long[][] a, long[][] b, int k)
+	{
+		long[][] merged = new long[Math.max(0, Math.min(k, a.length + b.length))][];
+		int i = 0, j = 0;
+		
+		for (int n = 0; n < merged.length; n++)
+		{
+			if (j == b.length || (i < a.length && before(a[i], b[j])))
+				merged[n] = a[i++];
+			else
+				merged[n] = b[j++];
+		}
+		
+		return merged;
+	}
+	
+	/**
+	 * Returns whether entry 'a' of a result ranks before entry 'b'.
+	 * @param a the first entry.
+	 * @param b the second entry.
+	 * @return true if 'a' ranks before 'b'.
+	 */
+	private static boolean before(long[] a, long[] b)
+	{
+		if (a[2] != b[2])
+			return a[2] > b[2];
+		
+		return a[0] != b[0] ? a[0] < b[0] : a[1] < b[1];
+	}
+	
+	/**
+	 * Returns whether adder 'a' ranks before adder 'b'.
+	 * @param a the index of the first adder.
+	 * @param b the index of the second adder.
+	 * @return true if 'a' ranks before 'b'.
+	 */
+	private boolean before(int a, int b)
+	{
+		return values[a] > values[b] || (values[a] == values[b] && a < b);
+	}
+	
+	/**
+	 * Moves the node at 'pos' up until its parent ranks before it.
+	 * @param pos the position of the node.
+	 */
+	private void siftUp(int pos)
+	{
+		while (0 < pos && before(heap[pos], heap[(pos - 1) / 2]))
+		{
+			swap(pos, (pos - 1) / 2);
+			pos = (pos - 1) / 2;
+		}
+	}
+	
+	/**
+	 * Moves the node at 'pos' down until it ranks before both its children.
+	 * @param pos the position of the node.
+	 */
+	private void siftDown(int pos)
+	{
+		while (2 * pos + 1 < size)
+		{
+			int child = 2 * pos + 1;
+			
+			if (child + 1 < size && before(heap[child + 1], heap[child]))
+				child++;
+			
+			if (!before(heap[child], heap[pos]))
+				break;
+			
+			swap(pos, child);
+			pos = child;
+		}
+	}
+	
+	/**
+	 * Swaps the nodes at positions 'i' and 'j'.
+	 * @param i the position of the first node.
+	 * @param j the position of the second node.
+	 */
+	private void swap(int i, int j)
+	{
+		int tmp = heap[i];
+		heap[i] = heap[j];
+		heap[j] = tmp;
+		position[heap[i]] = i;
+		position[heap[j]] = j;
+	}
+	
+	/**
+	 * Grows the arrays to room for 'capacity' adders.
+	 * @param capacity the new amount of adders.
+	 */
+	private void grow(int capacity)
+	{
+		int old = position.length;
+		
+		heap = Arrays.copyOf(heap, capacity);
+		position = Arrays.copyOf(position, capacity);
+		values = Arrays.copyOf(values, capacity);
+		
+		for (int i = old; i < capacity; i++)
+			position[i] = -1;
+	}
+}
@@ -0,0 +1,265 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Aggregates batches of integers into their sum, amount, minimum and maximum
+ * in a single pass. The sum is accumulated as a long, so it never overflows.
+ * Whole vectors of a big-endian heap buffer are aggregated with the Vector
+ * API of BatchVectors when the jdk.incubator.vector module is present, that
+ * is when run with --add-modules jdk.incubator.vector. The rest, or all of a
+ * batch without the module, is aggregated one integer at a time.
+ */
+public class BatchKernel
+{
+	public static final int SUM = 0, COUNT = 1, MIN = 2, MAX = 3;
+	
+	// Whether the vector module is present, so that BatchVectors can be loaded.
+	private static final boolean VECTORS =
+			ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+	
+	/**
+	 * Aggregates 'length' integers of 'bytes', in the byte order of the
+	 * buffer, starting at the absolute byte index 'offset' into 'stats',
+	 * indexed by SUM, COUNT, MIN and MAX. The minimum and the maximum of an
+	 * empty batch are 0. The position of the buffer is not changed.
+	 * @param bytes the integers as bytes.
+	 * @param offset the byte index of the first integer.
+	 * @param length the amount of integers.
+	 * @param stats an array of at least four elements for the results.
+	 */
+	public static void aggregate(ByteBuffer bytes, int offset, int length, long[] stats)
+	{
+		aggregate(bytes, offset, length, stats, VECTORS);
+	}
+	
+	/**
+	 * Aggregates like aggregate(bytes, offset, length, stats), with or
+	 * without the vector pass.
+	 * @param bytes the integers as bytes.
+	 * @param offset the byte index of the first integer.
+	 * @param length the amount of integers.
+	 * @param stats an array of at least four elements for the results.
+	 * @param vectors whether whole vectors are aggregated with BatchVectors.
+	 */
+	private static void aggregate(ByteBuffer bytes, int offset, int length, long[] stats,
+			boolean vectors)
+	{
+		long sum = 0;
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, done = 0;
+		
+		if (vectors && bytes.hasArray() && bytes.order() == ByteOrder.BIG_ENDIAN)
+		{
+			done = BatchVectors.aggregate(bytes.array(), bytes.arrayOffset() + offset,
+					length, stats);
+			sum = stats[SUM];
+			min = (int) stats[MIN];
+			max = (int) stats[MAX];
+		}
+		
+		// The minimum and the maximum rarely change after the first few
+		// integers, so the branches are cheaper than branchless updates.
+		for (int i = offset + done * Integer.BYTES; i < offset + length * Integer.BYTES;
+				i += Integer.BYTES)
+		{
+			int value = bytes.getInt(i);
+			sum += value;
+			
+			if (value < min)
+				min = value;
+			
+			if (max < value)
+				max = value;
+		}
+		
+		stats[SUM] = sum;
+		stats[COUNT] = length;
+		stats[MIN] = length == 0 ? 0 : min;
+		stats[MAX] = length == 0 ? 0 : max;
+	}
+	
+	/**
+	 * Benchmarks the vector pass against the scalar loop on the same batch
+	 * buffer, and then
+	 * receiving a stream of integers one at a time, as plain numbers, against
+	 * receiving it in batch frames, and prints the time per integer of each.
+	 * @param args optionally the batch size and the amount of rounds.
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 12;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int batches = 64;
+		
+		benchmarkKernel(size, rounds * batches);
+		
+		// Serialise the same integers both ways.
+		Random random = new Random(1);
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		ByteArrayOutputStream framed = new ByteArrayOutputStream();
+		
+		try (ObjectOutputStream plainOut = new ObjectOutputStream(plain);
+				ObjectOutputStream framedOut = new ObjectOutputStream(framed))
+		{
+			for (int b = 0; b < batches; b++)
+			{
+				framedOut.writeInt(Adder.FRAME_MARKER);
+				framedOut.writeInt(Adder.FRAME_BATCH);
+				framedOut.writeInt(size);
+				
+				for (int i = 0; i < size; i++)
+				{
+					int value = random.nextInt(40) - 20;
+					value = value == 0 ? 1 : value;
+					plainOut.writeInt(value);
+					framedOut.writeInt(value);
+				}
+			}
+		}
+		
+		byte[] plainBytes = plain.toByteArray();
+		byte[] framedBytes = framed.toByteArray();
+		long expected = 0, actual = 0;
+		double perNumber = 0, perBatch = 0;
+		
+		// Run both twice, discarding the first run as a warm-up.
+		for (int run = 0; run < 2; run++)
+		{
+			long start = System.nanoTime();
+			
+			for (int r = 0; r < rounds; r++)
+				expected = receivePlain(plainBytes, batches * size);
+			
+			perNumber = (double) (System.nanoTime() - start) / rounds / batches / size;
+			start = System.nanoTime();
+			
+			for (int r = 0; r < rounds; r++)
+				actual = receiveBatches(framedBytes, batches);
+			
+			perBatch = (double) (System.nanoTime() - start) / rounds / batches / size;
+		}
+		
+		if (expected != actual)
+			throw new IllegalStateException("The two streams summed up differently.");
+		
+		System.out.println(String.format("Receiving %d batches of %d integers,"
+				+ " %d rounds.", batches, size, rounds));
+		System.out.println(String.format("One at a time: %.3f ns/integer.", perNumber));
+		System.out.println(String.format("Batch frames:  %.3f ns/integer (%.2fx).",
+				perBatch, perNumber / perBatch));
+	}
+	
+	/**
+	 * Aggregates the same batch buffer 'rounds' times one integer at a time
+	 * and with the vector pass, and prints the best time per integer of both
+	 * over a few runs.
+	 * @param size the amount of integers in the batch.
+	 * @param rounds the amount of aggregations per run.
+	 */
+	private static void benchmarkKernel(int size, int rounds)
+	{
+		Random random = new Random(1);
+		ByteBuffer batch = ByteBuffer.allocate(size * Integer.BYTES);
+		
+		for (int i = 0; i < size; i++)
+			batch.putInt(i * Integer.BYTES, random.nextInt(40) - 20);
+		
+		long[] expected = new long[4], actual = new long[4];
+		double perLoop = Double.MAX_VALUE, perVector = Double.MAX_VALUE;
+		
+		// Keep the best of a few runs, as the first ones are warm-ups.
+		for (int run = 0; run < 5; run++)
+		{
+			long start = System.nanoTime();
+			
+			for (int r = 0; r < rounds; r++)
+				aggregate(batch, 0, size, expected, false);
+			
+			perLoop = Math.min(perLoop, (double) (System.nanoTime() - start) / rounds / size);
+			start = System.nanoTime();
+			
+			for (int r = 0; r < rounds; r++)
+				aggregate(batch, 0, size, actual, VECTORS);
+			
+			perVector = Math.min(perVector, (double) (System.nanoTime() - start) / rounds / size);
+		}
+		
+		if (!Arrays.equals(expected, actual))
+			throw new IllegalStateException("The vectors and the loop aggregated differently.");
+		
+		System.out.println(String.format("Aggregating a batch of %d integers,"
+				+ " %d rounds.", size, rounds));
+		System.out.println(String.format("Scalar loop:   %.3f ns/integer.", perLoop));
+		
+		if (VECTORS)
+			System.out.println(String.format("Vectors:       %.3f ns/integer (%.2fx).",
+					perVector, perLoop / perVector));
+		else
+			System.out.println("Vectors:       off, run with --add-modules jdk.incubator.vector.");
+	}
+	
+	/**
+	 * Receives 'count' plain numbers the way an adder receives them, one
+	 * integer and one window update at a time.
+	 * @param bytes the serialised stream.
+	 * @param count the amount of numbers.
+	 * @return the sum of the numbers.
+	 * @throws IOException
+	 */
+	private static long receivePlain(byte[] bytes, int count) throws IOException
+	{
+		SlidingWindow window = new SlidingWindow(60, 1000);
+		ObjectInputStream inStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		long sum = 0;
+		
+		for (int i = 0; i < count; i++)
+		{
+			int value = inStream.readInt();
+			sum += value;
+			window.add(value);
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * Receives 'count' batch frames the way an adder receives them, reading
+	 * each batch at once and updating the window once per batch.
+	 * @param bytes the serialised stream.
+	 * @param count the amount of batch frames.
+	 * @return the sum of the numbers.
+	 * @throws IOException
+	 */
+	private static long receiveBatches(byte[] bytes, int count) throws IOException
+	{
+		SlidingWindow window = new SlidingWindow(60, 1000);
+		ObjectInputStream inStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		ByteBuffer batch = ByteBuffer.allocate(0);
+		long[] stats = new long[4];
+		long sum = 0;
+		
+		for (int b = 0; b < count; b++)
+		{
+			inStream.readInt();
+			inStream.readInt();
+			int length = inStream.readInt();
+			
+			if (batch.capacity() < length * Integer.BYTES)
+				batch = ByteBuffer.allocate(length * Integer.BYTES);
+			
+			inStream.readFully(batch.array(), 0, length * Integer.BYTES);
+			aggregate(batch, 0, length, stats);
+			sum += stats[SUM];
+			window.add(stats[SUM], (int) stats[COUNT]);
+		}
+		
+		return sum;
+	}
+}
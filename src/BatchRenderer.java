@@ -0,0 +1,362 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.JLabel;
+
+/**
+ * Renders many map images without a window, e.g. for reports or to seed the
+ * disk cache of the map client for an area before going offline. The images
+ * are fetched by a few threads at once, paced to a maximum request rate and
+ * retried with exponential backoff when a request fails. Images already in
+ * the disk cache are not fetched again.
+ */
+public class BatchRenderer {
+	private final WmsClient client;
+	private final ExecutorService pool;
+	private final double rate; // requests per second, 0 for unlimited
+	private final int retries; // retries of a failed request
+	private final long backoff; // delay before the first retry in milliseconds
+	private MapDiskCache disk; // cache of the images, null if none
+	private long ttl; // time to live of the images in the cache in milliseconds
+	private long nextRequest; // earliest time of the next request in nanoseconds
+
+	// Statistics
+	private final AtomicLong rendered = new AtomicLong(), cached = new AtomicLong(), failed = new AtomicLong(),
+			retried = new AtomicLong(), bytes = new AtomicLong();
+	private long elapsed; // duration of the last run in nanoseconds
+
+	/**
+	 * Constructs a BatchRenderer fetching from 'client' at most 'threads'
+	 * images at once and at most 'rate' requests per second, retrying a failed
+	 * request 'retries' times.
+	 * @param client client of the WMS service
+	 * @param threads maximum number of images fetched at once
+	 * @param rate maximum number of requests per second, 0 for unlimited
+	 * @param retries number of retries of a failed request
+	 */
+	public BatchRenderer(WmsClient client, int threads, double rate, int retries) {
+		this.client = client;
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "map-batch");
+			t.setDaemon(true);
+			return t;
+		});
+		this.rate = rate;
+		this.retries = retries;
+		this.backoff = 500;
+	}
+
+	/**
+	 * Keep the images in a disk cache for 'ttl' milliseconds, keyed like the
+	 * disk tier of MapImageCache so that the map client finds them.
+	 * @param disk the disk cache or null for none
+	 * @param ttl time to live of the images in milliseconds
+	 */
+	public void setDiskCache(MapDiskCache disk, long ttl) {
+		this.disk = disk;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Render the images of 'keys', writing them into 'directory' named by
+	 * their position in the list, e.g. 000042.png, and to the disk cache.
+	 * @param keys keys of the images
+	 * @param directory directory of the image files or null to only cache them
+	 * @throws IOException if the directory cannot be created
+	 * @throws InterruptedException
+	 */
+	public void render(List<MapKey> keys, Path directory) throws IOException, InterruptedException {
+		if (directory != null)
+			Files.createDirectories(directory);
+
+		long start = System.nanoTime();
+		List<Future<?>> renders = new ArrayList<>();
+		for (int i = 0; i < keys.size(); i++) {
+			MapKey key = keys.get(i);
+			Path file = directory == null ? null
+					: directory.resolve(String.format("%06d.%s", i, extension(key.getFormat())));
+			renders.add(pool.submit(() -> {
+				render(key, file);
+				return null;
+			}));
+		}
+		try {
+			for (Future<?> render : renders) {
+				try {
+					render.get();
+				} catch (ExecutionException e) {
+					failed.incrementAndGet();
+					e.getCause().printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			for (Future<?> render : renders)
+				render.cancel(true);
+			throw e;
+		} finally {
+			elapsed = System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Take the image of 'key' from the disk cache or fetch and cache it, and
+	 * write it into 'file' unless it is null.
+	 */
+	private void render(MapKey key, Path file) throws IOException, InterruptedException {
+		String url = key.toURL(client.getEndpoint());
+		byte[] image = disk == null ? null : disk.get(url);
+		if (image != null) {
+			cached.incrementAndGet();
+		} else {
+			image = fetch(key);
+			if (image == null) {
+				failed.incrementAndGet();
+				return;
+			}
+			if (disk != null)
+				disk.put(url, image, ttl);
+		}
+		if (file != null)
+			Files.write(file, image);
+		rendered.incrementAndGet();
+		bytes.addAndGet(image.length);
+	}
+
+	/**
+	 * Fetch the image of 'key', retrying failed requests after a delay doubling
+	 * with every attempt. A response that is not an image, e.g. a service
+	 * exception, is not retried.
+	 * @return the image or null if it could not be fetched
+	 */
+	private byte[] fetch(MapKey key) throws InterruptedException {
+		for (int attempt = 0;; attempt++) {
+			pace();
+			try {
+				byte[] response = client.getMap(key);
+				if (ImageDecoder.isImage(response))
+					return response;
+				System.err.println("The server did not return an image for " + key + ": "
+						+ new String(response, 0, Math.min(response.length, 200), StandardCharsets.UTF_8));
+				return null;
+			} catch (IOException e) {
+				if (attempt >= retries) {
+					System.err.println("Giving up on " + key + ": " + e);
+					return null;
+				}
+			}
+			retried.incrementAndGet();
+			Thread.sleep(backoff << Math.min(attempt, 10));
+		}
+	}
+
+	/**
+	 * Wait until the next request keeps within the request rate.
+	 */
+	private void pace() throws InterruptedException {
+		if (rate <= 0)
+			return;
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			nextRequest = Math.max(nextRequest, now);
+			wait = nextRequest - now;
+			nextRequest += (long) (1e9 / rate);
+		}
+		TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+	/**
+	 * Stop the threads of the renderer.
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	public long getRendered() {
+		return rendered.get();
+	}
+
+	public long getCached() {
+		return cached.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getRetried() {
+		return retried.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns the number of images rendered per second in the last run.
+	 * @return the throughput in maps per second
+	 */
+	public double getMapsPerSecond() {
+		return elapsed == 0 ? 0 : rendered.get() * 1e9 / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("rendered %d maps (%d cached) in %.1f s, %.1f maps/s, %d failed, %d retries, %d bytes",
+				rendered.get(), cached.get(), elapsed / 1e9, getMapsPerSecond(), failed.get(), retried.get(),
+				bytes.get());
+	}
+
+	private static String extension(String format) {
+		if (format.equals("image/jpeg"))
+			return "jpg";
+		int slash = format.indexOf('/');
+		return format.substring(slash + 1).replaceAll("[^A-Za-z0-9]", "");
+	}
+
+	private static double[] parseBBox(String bbox) {
+		String[] parts = bbox.trim().split("\\s*,\\s*");
+		if (parts.length != 4)
+			throw new IllegalArgumentException("Not a bounding box: " + bbox);
+		double[] box = new double[4];
+		for (int i = 0; i < 4; i++)
+			box[i] = Double.parseDouble(parts[i]);
+		return box;
+	}
+
+	/**
+	 * Read bounding boxes, one "minX,minY,maxX,maxY" per line, skipping empty
+	 * lines and lines starting with #.
+	 */
+	private static List<double[]> readBBoxes(String file) throws IOException {
+		List<double[]> boxes = new ArrayList<>();
+		try (BufferedReader in = file.equals("-")
+				? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+				: Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+			for (String line; (line = in.readLine()) != null;) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#"))
+					boxes.add(parseBBox(line));
+			}
+		}
+		return boxes;
+	}
+
+	/**
+	 * Renders a batch of maps and reports the throughput. The maps are either
+	 * the bounding boxes of a file, or the tiles of tile mode covering a region
+	 * at a range of zoom levels, the number of zoom-ins from the whole map.
+	 * @param args options "bboxes=<file>" (- for standard input) or
+	 *            "region=minX,minY,maxX,maxY" with "zooms=<first>-<last>",
+	 *            and "endpoint=<url>", "layers=<layers>",
+	 *            "size=<width>x<height>" and "format=<MIME type>" of the
+	 *            bounding boxes, "threads=<n>", "rate=<requests per second>",
+	 *            "retries=<n>", "out=<directory>" for image files and
+	 *            "cache=<directory>" or "nocache"; without "out" the maps go to
+	 *            the cache of MapDialog, which must not be running meanwhile
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+
+		String endpoint = Mapper.DEFAULT_ENDPOINT, layers = "bluemarble,cities", format = "image/png";
+		String bboxes = null, region = null, zooms = "0-3";
+		int width = 953, height = 480, threads = 4, retries = 3;
+		double rate = 10;
+		Path out = null;
+		Path cacheDirectory = Paths.get(System.getProperty("user.home"), ".mapdialog", "cache");
+		boolean cacheSet = false;
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			String option = eq < 0 ? arg : arg.substring(0, eq), value = eq < 0 ? "" : arg.substring(eq + 1);
+			if (option.equals("endpoint"))
+				endpoint = value;
+			else if (option.equals("layers"))
+				layers = value;
+			else if (option.equals("format"))
+				format = value;
+			else if (option.equals("bboxes"))
+				bboxes = value;
+			else if (option.equals("region"))
+				region = value;
+			else if (option.equals("zooms"))
+				zooms = value;
+			else if (option.equals("size")) {
+				String[] size = value.split("x");
+				width = Integer.parseInt(size[0]);
+				height = Integer.parseInt(size[1]);
+			} else if (option.equals("threads"))
+				threads = Integer.parseInt(value);
+			else if (option.equals("rate"))
+				rate = Double.parseDouble(value);
+			else if (option.equals("retries"))
+				retries = Integer.parseInt(value);
+			else if (option.equals("out"))
+				out = Paths.get(value);
+			else if (option.equals("cache")) {
+				cacheDirectory = Paths.get(value);
+				cacheSet = true;
+			} else if (option.equals("nocache")) {
+				cacheDirectory = null;
+				cacheSet = true;
+			} else
+				throw new IllegalArgumentException("Unknown option: " + arg);
+		}
+		// Files alone are enough for reports; seeding needs the cache.
+		if (out != null && !cacheSet)
+			cacheDirectory = null;
+		if (out == null && cacheDirectory == null)
+			throw new IllegalArgumentException("Nowhere to render to: give out=<directory> or a cache");
+
+		Mapper mapper = new Mapper(new JLabel(), 180, 90, endpoint);
+		mapper.setLayers(layers);
+		List<MapKey> keys = new ArrayList<>();
+		if (bboxes != null) {
+			for (double[] box : readBBoxes(bboxes))
+				keys.add(new MapKey(box[0], box[1], box[2], box[3], layers, width, height, format));
+		} else if (region != null) {
+			String[] levels = zooms.split("-");
+			keys.addAll(mapper.tileKeys(parseBBox(region), Integer.parseInt(levels[0]),
+					Integer.parseInt(levels[levels.length - 1])));
+		} else {
+			throw new IllegalArgumentException("Nothing to render: give bboxes=<file> or region=<bbox>");
+		}
+
+		BatchRenderer renderer = new BatchRenderer(mapper.getClient(), threads, rate, retries);
+		MapDiskCache disk = null;
+		if (cacheDirectory != null) {
+			// The cache can only be open in one process, e.g. not while
+			// MapDialog runs on it.
+			try {
+				disk = new MapDiskCache(cacheDirectory, 4096, 256L << 20);
+			} catch (IOException e) {
+				System.err.println("Cannot open the cache: " + e.getMessage()
+						+ "; close MapDialog or give cache=<directory> or nocache");
+				System.exit(2);
+			}
+			renderer.setDiskCache(disk, 24 * 3600 * 1000L);
+		}
+
+		System.out.println(String.format("Rendering %d maps from %s with %d threads at %s requests/s", keys.size(),
+				endpoint, threads, rate > 0 ? String.valueOf(rate) : "unlimited"));
+		renderer.render(keys, out);
+		if (disk != null)
+			disk.close();
+		System.out.println(renderer);
+		renderer.shutdown();
+		System.exit(renderer.getFailed() == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,86 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The vector pass of BatchKernel, built on the jdk.incubator.vector module.
+ * The module has to be added with --add-modules jdk.incubator.vector at both
+ * compile and run time. BatchKernel only loads this class when the module is
+ * present at run time.
+ */
+class BatchVectors
+{
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> BYTES = INTS.vectorShape().withLanes(byte.class);
+	
+	// Reverses the bytes of each integer, from big-endian to little-endian.
+	private static final VectorShuffle<Byte> SWAP =
+			VectorShuffle.fromOp(BYTES, i -> i - i % 4 + 3 - i % 4);
+	
+	// The amount of integers summed in int lanes before they're added to the
+	// long sum. Each integer is split into a signed high and an unsigned low
+	// half of 16 bits, so the halves of 2^15 integers sum up without overflow,
+	// also across the lanes.
+	private static final int CHUNK = 1 << 15;
+	
+	/**
+	 * Aggregates the whole vectors of the 'length' big-endian integers of
+	 * 'bytes' starting at the byte index 'offset' into stats[SUM],
+	 * stats[MIN] and stats[MAX] of BatchKernel. The minimum and the maximum
+	 * are Integer.MAX_VALUE and Integer.MIN_VALUE if there are no whole
+	 * vectors. The rest of the integers are left to the caller.
+	 * @param bytes the integers as bytes.
+	 * @param offset the byte index of the first integer.
+	 * @param length the amount of integers.
+	 * @param stats an array of at least four elements for the results.
+	 * @return the amount of integers aggregated.
+	 */
+	static int aggregate(byte[] bytes, int offset, int length, long[] stats)
+	{
+		int whole = length - length % INTS.length();
+		stats[BatchKernel.SUM] = 0;
+		stats[BatchKernel.MIN] = Integer.MAX_VALUE;
+		stats[BatchKernel.MAX] = Integer.MIN_VALUE;
+		
+		for (int done = 0; done < whole; done += CHUNK)
+			aggregateChunk(bytes, offset + done * Integer.BYTES,
+					Math.min(CHUNK, whole - done), stats);
+		
+		return whole;
+	}
+	
+	/**
+	 * Adds at most CHUNK integers, a whole amount of vectors, to the sum, the
+	 * minimum and the maximum in 'stats'. The vectors are reduced here, so
+	 * that none of them outlive the loop.
+	 * @param bytes the integers as bytes.
+	 * @param offset the byte index of the first integer.
+	 * @param length the amount of integers.
+	 * @param stats the sum, the minimum and the maximum so far.
+	 */
+	private static void aggregateChunk(byte[] bytes, int offset, int length, long[] stats)
+	{
+		IntVector high = IntVector.zero(INTS), low = IntVector.zero(INTS);
+		IntVector min = IntVector.broadcast(INTS, Integer.MAX_VALUE);
+		IntVector max = IntVector.broadcast(INTS, Integer.MIN_VALUE);
+		
+		for (int i = offset; i < offset + length * Integer.BYTES; i += BYTES.length())
+		{
+			IntVector values = ByteVector.fromArray(BYTES, bytes, i)
+					.rearrange(SWAP).reinterpretAsInts();
+			high = high.add(values.lanewise(VectorOperators.ASHR, 16));
+			low = low.add(values.and(0xFFFF));
+			min = min.min(values);
+			max = max.max(values);
+		}
+		
+		stats[BatchKernel.SUM] += ((long) high.reduceLanes(VectorOperators.ADD) << 16)
+				+ low.reduceLanes(VectorOperators.ADD);
+		stats[BatchKernel.MIN] = Math.min(stats[BatchKernel.MIN],
+				min.reduceLanes(VectorOperators.MIN));
+		stats[BatchKernel.MAX] = Math.max(stats[BatchKernel.MAX],
+				max.reduceLanes(VectorOperators.MAX));
+	}
+}
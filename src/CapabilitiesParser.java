@@ -0,0 +1,87 @@
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pulls the names and titles of the map layers out of a WMS GetCapabilities
+ * response with a streaming parser, without building a document. Only the
+ * layers directly under the root layer of the capability are listed, and the
+ * parser stops reading at the end of the root layer. The DTD is not loaded.
+ */
+public class CapabilitiesParser {
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	static {
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Returns the (name, title) pairs of the layers of a GetCapabilities
+	 * response, i.e. of the elements at /(root)/Capability/Layer/Layer.
+	 * @param in the response
+	 * @return the layers in document order
+	 * @throws XMLStreamException
+	 */
+	public static ArrayList<Tuple<String, String>> parseLayers(InputStream in) throws XMLStreamException {
+		ArrayList<Tuple<String, String>> layers = new ArrayList<>();
+		XMLStreamReader reader;
+		synchronized (factory) {
+			reader = factory.createXMLStreamReader(in);
+		}
+
+		try {
+			String[] path = new String[4]; // names of the open elements down to a layer
+			int depth = 0; // number of open elements
+			String name = null, title = null; // of the current layer
+
+			while (reader.hasNext()) {
+				int event = reader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String element = reader.getLocalName();
+
+					// Read the name and title of a layer, which also closes their elements.
+					if (depth == 4 && inLayer(path)) {
+						if (element.equals("Name")) {
+							name = reader.getElementText().trim();
+							continue;
+						} else if (element.equals("Title")) {
+							title = reader.getElementText().trim();
+							continue;
+						}
+					}
+					if (depth < path.length)
+						path[depth] = element;
+					depth++;
+
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+					if (depth == 3 && inLayer(path)) {
+						if (name != null)
+							layers.add(new Tuple<String, String>(name, title != null ? title : name));
+						name = title = null;
+					} else if (depth == 2 && path[1].equals("Capability") && path[2].equals("Layer")) {
+						// The root layer ends, and so do the layers.
+						break;
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return layers;
+	}
+
+	/**
+	 * Returns whether 'path' leads to a layer of the root layer.
+	 */
+	private static boolean inLayer(String[] path) {
+		return "Capability".equals(path[1]) && "Layer".equals(path[2]) && "Layer".equals(path[3]);
+	}
+}
@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Limits the requests in flight to a service, adapting the limit to the
+ * latency of the responses: the limit grows by one per round trip while the
+ * requests fill at least half of it and the latency stays near its baseline,
+ * and shrinks by a factor when the latency rises or a request is dropped by
+ * the server. Requests over the limit wait in a queue, visible ones before
+ * prefetches, and prefetches are shed while the latency is rising, so that
+ * the service stays near its best throughput without tuning by hand.
+ */
+public class ConcurrencyLimiter {
+	/**
+	 * Priority of a request, most urgent first.
+	 */
+	public enum Priority {
+		VISIBLE, PREFETCH
+	}
+
+	private static final double TOLERANCE = 2; // latency over the baseline that counts as congestion
+	private static final double SLACK_MILLIS = 10; // latency over the baseline always tolerated
+	private static final double BACKOFF = 0.9; // decrease of the limit on congestion
+	private static final double DROP_BACKOFF = 0.5; // decrease of the limit on a dropped request
+
+	private final int minLimit, maxLimit;
+	private double limit; // current limit of requests in flight
+	private int inFlight; // requests in flight
+	private double baseline = Double.NaN; // latency without congestion in milliseconds
+	private boolean congested; // whether the last response was congested
+	private long lastDecrease; // time of the last decrease in nanoseconds
+	private long sequence; // order of arrival of the waiters
+	private final PriorityQueue<Waiter> queue;
+
+	// Statistics
+	private long admitted, shed;
+
+	/**
+	 * A request waiting for a permit.
+	 */
+	private static final class Waiter implements Comparable<Waiter> {
+		final Priority priority;
+		final long sequence;
+		final CompletableFuture<Void> permit = new CompletableFuture<>();
+
+		Waiter(Priority priority, long sequence) {
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Waiter other) {
+			int c = priority.compareTo(other.priority);
+			return c != 0 ? c : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/**
+	 * Constructs a limiter starting at 'initialLimit' requests in flight and
+	 * adapting between 'minLimit' and 'maxLimit'.
+	 * @param initialLimit first limit of requests in flight
+	 * @param minLimit least limit
+	 * @param maxLimit greatest limit
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.queue = new PriorityQueue<>();
+	}
+
+	/**
+	 * Ask for a permit to send a request. The permit is granted at once if the
+	 * limit allows, or after the more urgent and earlier requests otherwise. A
+	 * prefetch fails with a RejectedExecutionException while the service is
+	 * congested. Cancelling the future gives up the place in the queue; a
+	 * granted permit must be given back with release or drop.
+	 * @param priority priority of the request
+	 * @return the future of the permit
+	 */
+	public CompletableFuture<Void> acquire(Priority priority) {
+		Waiter waiter;
+		synchronized (this) {
+			if (priority == Priority.PREFETCH && congested) {
+				shed++;
+				return CompletableFuture.failedFuture(new RejectedExecutionException("Prefetch shed"));
+			}
+			if (inFlight < (int) limit && queue.isEmpty()) {
+				inFlight++;
+				admitted++;
+				return CompletableFuture.completedFuture(null);
+			}
+			waiter = new Waiter(priority, sequence++);
+			queue.add(waiter);
+		}
+		waiter.permit.whenComplete((v, e) -> {
+			if (waiter.permit.isCancelled()) {
+				synchronized (this) {
+					queue.remove(waiter);
+				}
+			}
+		});
+		dispatch();
+		return waiter.permit;
+	}
+
+	/**
+	 * Give back the permit of a request answered after 'latency', adapting
+	 * the limit to it.
+	 * @param latency time to the response in nanoseconds, or a negative value
+	 *            for a request that says nothing of the latency, e.g. a
+	 *            cancelled one
+	 */
+	public void release(long latency) {
+		List<Waiter> shed = List.of();
+		synchronized (this) {
+			inFlight--;
+			if (latency >= 0) {
+				double millis = latency / 1e6;
+				// The baseline follows a drop at once and a rise slowly.
+				baseline = Double.isNaN(baseline) || millis < baseline ? millis : baseline + 0.01 * (millis - baseline);
+				congested = millis > TOLERANCE * baseline + SLACK_MILLIS;
+				if (congested)
+					shed = decrease(BACKOFF, latency);
+				else if (inFlight + 1 >= limit / 2)
+					limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+		}
+		reject(shed);
+		dispatch();
+	}
+
+	/**
+	 * Give back the permit of a request the server dropped, timed out or
+	 * answered with an overload status, shrinking the limit.
+	 */
+	public void drop() {
+		List<Waiter> shed;
+		synchronized (this) {
+			inFlight--;
+			congested = true;
+			shed = decrease(DROP_BACKOFF, 0);
+		}
+		reject(shed);
+		dispatch();
+	}
+
+	/**
+	 * Shrink the limit by 'factor', at most once per 'window' nanoseconds so
+	 * that the responses of one round trip count once, and take the queued
+	 * prefetches out of the queue to be shed.
+	 * @return the prefetches to shed
+	 */
+	private List<Waiter> decrease(double factor, long window) {
+		long now = System.nanoTime();
+		if (now - lastDecrease >= window) {
+			limit = Math.max(minLimit, limit * factor);
+			lastDecrease = now;
+		}
+		List<Waiter> prefetches = new ArrayList<>();
+		queue.removeIf(waiter -> waiter.priority == Priority.PREFETCH && prefetches.add(waiter));
+		shed += prefetches.size();
+		return prefetches;
+	}
+
+	/**
+	 * Fail the permits of shed prefetches, outside of the lock.
+	 */
+	private static void reject(List<Waiter> shed) {
+		for (Waiter waiter : shed)
+			waiter.permit.completeExceptionally(new RejectedExecutionException("Prefetch shed"));
+	}
+
+	/**
+	 * Grant permits to the queued requests the limit allows, outside of the
+	 * lock as granting runs the requests.
+	 */
+	private void dispatch() {
+		List<Waiter> granted = new ArrayList<>();
+		synchronized (this) {
+			while (inFlight < (int) limit && !queue.isEmpty()) {
+				granted.add(queue.poll());
+				inFlight++;
+				admitted++;
+			}
+		}
+		for (Waiter waiter : granted)
+			if (!waiter.permit.complete(null))
+				release(-1); // cancelled meanwhile
+	}
+
+	/**
+	 * Returns whether 'e' or one of its causes is the failure of a shed
+	 * prefetch, which is no error.
+	 * @param e the failure
+	 * @return true if the request was shed
+	 */
+	public static boolean isShed(Throwable e) {
+		for (; e != null; e = e.getCause())
+			if (e instanceof RejectedExecutionException)
+				return true;
+		return false;
+	}
+
+	synchronized public double getLimit() {
+		return limit;
+	}
+
+	synchronized public int getInFlight() {
+		return inFlight;
+	}
+
+	synchronized public int getQueued() {
+		return queue.size();
+	}
+
+	synchronized public long getAdmitted() {
+		return admitted;
+	}
+
+	synchronized public long getShed() {
+		return shed;
+	}
+
+	@Override
+	synchronized public String toString() {
+		return String.format("limit %.1f, in flight %d, queued %d, admitted %d, shed %d, baseline %.1f ms", limit,
+				inFlight, queue.size(), admitted, shed, baseline);
+	}
+}
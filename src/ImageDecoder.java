@@ -0,0 +1,88 @@
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes map images into the pixel format of the screen, so that Swing can
+ * draw them without converting them on every repaint. Decoding is meant to
+ * run on the fetching threads, leaving only the swap of the image to the
+ * event dispatch thread. Without a screen the images are converted to
+ * TYPE_INT_ARGB, the format the images are composited in.
+ */
+public class ImageDecoder {
+	private static final GraphicsConfiguration screen = GraphicsEnvironment.isHeadless() ? null
+			: GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+
+	/**
+	 * Decode an image and convert it to the format of the screen.
+	 * @param bytes the encoded image, e.g. PNG bytes
+	 * @return the image or null if the bytes are not an image
+	 * @throws IOException
+	 */
+	public static BufferedImage decode(byte[] bytes) throws IOException {
+		long start = System.nanoTime();
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+		image = image == null ? null : toCompatible(image);
+		MapTrace.record(MapTrace.Stage.DECODE, start);
+		return image;
+	}
+
+	/**
+	 * Returns whether 'bytes' are an image in a format that can be decoded,
+	 * reading only its header, e.g. to tell a map from an error message.
+	 * @param bytes the encoded image
+	 * @return true if the bytes are an image
+	 */
+	public static boolean isImage(byte[] bytes) {
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+			return in != null && ImageIO.getImageReaders(in).hasNext();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns 'image' in the format of the screen, converting it if necessary.
+	 * @param image the image
+	 * @return an image of the same content in the format of the screen
+	 */
+	public static BufferedImage toCompatible(BufferedImage image) {
+		BufferedImage compatible;
+		if (screen == null) {
+			if (image.getType() == BufferedImage.TYPE_INT_ARGB)
+				return image;
+			compatible = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		} else if (image.getColorModel().equals(screen.getColorModel(image.getTransparency()))) {
+			return image;
+		} else {
+			compatible = screen.createCompatibleImage(image.getWidth(), image.getHeight(), image.getTransparency());
+		}
+
+		Graphics2D g = compatible.createGraphics();
+		try {
+			g.drawImage(image, 0, 0, null);
+		} finally {
+			g.dispose();
+		}
+		return compatible;
+	}
+
+	/**
+	 * Create an empty translucent image in the format of the screen.
+	 * @param width width of the image in pixels
+	 * @param height height of the image in pixels
+	 * @return the image
+	 */
+	public static BufferedImage createCompatible(int width, int height) {
+		if (screen == null)
+			return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		return screen.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+	}
+}
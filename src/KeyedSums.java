@@ -0,0 +1,167 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * An open-addressing hash map from long keys to a sum and an amount of
+ * values. The entries are stored as (key, sum, count) triplets of primitive
+ * longs in a single buffer, either on the heap or off-heap, and a slot is in
+ * use whenever its count is non-zero, so any key value is allowed.
+ */
+public class KeyedSums
+{
+	private static final int KEY = 0, SUM = 1, COUNT = 2, STRIDE = 3;
+	
+	private final boolean offHeap;				// slots in direct memory.
+	private LongBuffer slots;					// (key, sum, count) triplets.
+	private int capacity;						// amount of slots.
+	private int size;							// amount of slots in use.
+	
+	/**
+	 * Creates an empty map with room for at least 'capacity' keys.
+	 * @param capacity the initial amount of keys.
+	 * @param offHeap whether the slots are stored outside of the heap.
+	 */
+	public KeyedSums(int capacity, boolean offHeap)
+	{
+		this.offHeap = offHeap;
+		this.capacity = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1);
+		this.slots = allocate(this.capacity, offHeap);
+		this.size = 0;
+	}
+	
+	/**
+	 * Adds a single value to the sum of 'key'.
+	 * @param key the key of the value.
+	 * @param value the value to add.
+	 */
+	public void add(long key, long value)
+	{
+		add(key, value, 1);
+	}
+	
+	/**
+	 * Adds a partial sum of 'count' values to the sum of 'key'.
+	 * @param key the key of the values.
+	 * @param sum the sum of the values.
+	 * @param count the amount of values.
+	 */
+	public synchronized void add(long key, long sum, long count)
+	{
+		if (count == 0)
+			return;
+		
+		// Keep the load factor at or below 3/4.
+		if (4 * (size + 1) > 3 * capacity)
+			grow();
+		
+		int i = slot(key) * STRIDE;
+		
+		if (slots.get(i + COUNT) == 0)
+		{
+			slots.put(i + KEY, key);
+			size++;
+		}
+		
+		slots.put(i + SUM, slots.get(i + SUM) + sum);
+		slots.put(i + COUNT, slots.get(i + COUNT) + count);
+	}
+	
+	/**
+	 * Returns the sum of the values of 'key'.
+	 * @param key the key.
+	 * @return the sum of the values of 'key' or 0 if there are none.
+	 */
+	public synchronized long sum(long key)
+	{
+		return slots.get(slot(key) * STRIDE + SUM);
+	}
+	
+	/**
+	 * Returns the amount of values of 'key'.
+	 * @param key the key.
+	 * @return the amount of values of 'key'.
+	 */
+	public synchronized long count(long key)
+	{
+		return slots.get(slot(key) * STRIDE + COUNT);
+	}
+	
+	/**
+	 * Returns the amount of distinct keys in the map.
+	 * @return the amount of distinct keys in the map.
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Adds the sum and the amount of every key of this map to 'target'.
+	 * @param target the map to merge into.
+	 */
+	public synchronized void mergeInto(KeyedSums target)
+	{
+		for (int i = 0; i < capacity * STRIDE; i += STRIDE)
+		{
+			if (slots.get(i + COUNT) != 0)
+				target.add(slots.get(i + KEY), slots.get(i + SUM), slots.get(i + COUNT));
+		}
+	}
+	
+	/**
+	 * Finds the slot of 'key' or the empty slot where it would be inserted.
+	 * @param key the key.
+	 * @return the index of the slot.
+	 */
+	private int slot(long key)
+	{
+		// Spread the bits of the key before masking.
+		long h = key * 0x9E3779B97F4A7C15L;
+		int i = (int) (h ^ (h >>> 32)) & (capacity - 1);
+		
+		// Probe linearly until the key or an empty slot is found.
+		while (slots.get(i * STRIDE + COUNT) != 0 && slots.get(i * STRIDE + KEY) != key)
+			i = (i + 1) & (capacity - 1);
+		
+		return i;
+	}
+	
+	/**
+	 * Doubles the amount of slots and reinserts every entry.
+	 */
+	private void grow()
+	{
+		LongBuffer old = slots;
+		int oldCapacity = capacity;
+		
+		capacity *= 2;
+		slots = allocate(capacity, offHeap);
+		
+		for (int j = 0; j < oldCapacity * STRIDE; j += STRIDE)
+		{
+			if (old.get(j + COUNT) != 0)
+			{
+				int i = slot(old.get(j + KEY)) * STRIDE;
+				slots.put(i + KEY, old.get(j + KEY));
+				slots.put(i + SUM, old.get(j + SUM));
+				slots.put(i + COUNT, old.get(j + COUNT));
+			}
+		}
+	}
+	
+	/**
+	 * Allocates a zeroed buffer of 'capacity' slots.
+	 * @param capacity the amount of slots.
+	 * @param offHeap whether the buffer is allocated outside of the heap.
+	 * @return the buffer.
+	 */
+	private static LongBuffer allocate(int capacity, boolean offHeap)
+	{
+		if (offHeap)
+			return ByteBuffer.allocateDirect(capacity * STRIDE * Long.BYTES)
+					.order(ByteOrder.nativeOrder()).asLongBuffer();
+		
+		return LongBuffer.allocate(capacity * STRIDE);
+	}
+}
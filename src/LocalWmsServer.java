@@ -0,0 +1,301 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for a WMS service, for measuring the map client offline
+ * and reproducibly. It answers GetCapabilities with a fixed list of layers and
+ * GetMap with synthesized PNG or JPEG images of the requested size: the first
+ * layer is an opaque background shaded by position, the others draw a
+ * coordinate grid and a marker on a transparent background. Every response can be
+ * delayed by a latency, throttled to a bandwidth, and failed at a given rate,
+ * and a share of the responses can be delayed further to model a heavy tail.
+ */
+public class LocalWmsServer {
+	public static final String[][] LAYERS = { { "bluemarble", "Blue Marble" }, { "cities", "Cities" },
+			{ "country_bounds", "Country boundaries" }, { "continents", "Continents" } };
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random;
+	private volatile long latency; // delay before a response in milliseconds
+	private volatile long bandwidth; // bytes per second, 0 for unlimited
+	private volatile double failureRate; // probability of failing a request
+	private volatile double slowRate; // probability of delaying a response further
+	private volatile long slowLatency; // further delay of a slow response in milliseconds
+
+	// Statistics
+	private final AtomicLong requests = new AtomicLong(), failures = new AtomicLong(), bytes = new AtomicLong();
+
+	/**
+	 * Starts a server at 'port' on the loopback interface, 0 for any free port.
+	 * @param port port of the server
+	 * @throws IOException
+	 */
+	public LocalWmsServer(int port) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		this.executor = Executors.newFixedThreadPool(16, r -> {
+			Thread t = new Thread(r, "local-wms");
+			t.setDaemon(true);
+			return t;
+		});
+		this.random = new Random(1);
+		server.createContext("/wms", this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Set the delay before every response.
+	 * @param latency delay in milliseconds
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Throttle the responses to 'bandwidth' bytes per second.
+	 * @param bandwidth bytes per second, 0 for unlimited
+	 */
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Fail requests with HTTP 500 at the rate 'failureRate'.
+	 * @param failureRate probability of failing a request, from 0 to 1
+	 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * Delay a share of the responses by a further latency, e.g. to model a
+	 * server stalling now and then.
+	 * @param slowRate probability of delaying a response further, from 0 to 1
+	 * @param slowLatency further delay in milliseconds
+	 */
+	public void setSlowResponses(double slowRate, long slowLatency) {
+		this.slowRate = slowRate;
+		this.slowLatency = slowLatency;
+	}
+
+	/**
+	 * Returns the URL of the service without a query.
+	 * @return the endpoint
+	 */
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/wms";
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			requests.incrementAndGet();
+			if (latency > 0)
+				Thread.sleep(latency);
+
+			boolean fail, slow;
+			synchronized (random) {
+				fail = random.nextDouble() < failureRate;
+				slow = random.nextDouble() < slowRate;
+			}
+			if (slow)
+				Thread.sleep(slowLatency);
+			if (fail) {
+				failures.incrementAndGet();
+				send(exchange, 500, "text/plain", "Simulated failure".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+
+			int status = 200;
+			String type;
+			byte[] body;
+			try {
+				Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+				String request = query.getOrDefault("REQUEST", "");
+				if (request.equalsIgnoreCase("GetCapabilities")) {
+					type = "application/vnd.ogc.wms_xml";
+					body = capabilities().getBytes(StandardCharsets.UTF_8);
+				} else if (request.equalsIgnoreCase("GetMap")) {
+					type = query.getOrDefault("FORMAT", "image/png").equalsIgnoreCase("image/jpeg") ? "image/jpeg"
+							: "image/png";
+					body = map(query, type);
+				} else {
+					throw new IllegalArgumentException("Unknown request: " + request);
+				}
+			} catch (RuntimeException e) {
+				status = 400;
+				type = "text/plain";
+				body = e.toString().getBytes(StandardCharsets.UTF_8);
+			}
+			send(exchange, status, type, body);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Send a response in chunks paced to the bandwidth.
+	 */
+	private void send(HttpExchange exchange, int status, String type, byte[] body)
+			throws IOException, InterruptedException {
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		int chunk = 8192;
+		long start = System.nanoTime();
+		for (int off = 0; off < body.length; off += chunk) {
+			int length = Math.min(chunk, body.length - off);
+			out.write(body, off, length);
+			out.flush();
+
+			long bandwidth = this.bandwidth;
+			if (bandwidth > 0) {
+				long due = start + (off + length) * 1_000_000_000L / bandwidth;
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+			}
+		}
+		bytes.addAndGet(body.length);
+	}
+
+	private static Map<String, String> parseQuery(String raw) {
+		Map<String, String> query = new HashMap<>();
+		if (raw == null)
+			return query;
+		for (String pair : raw.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				continue;
+			query.put(pair.substring(0, eq).toUpperCase(Locale.ROOT),
+					URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+		}
+		return query;
+	}
+
+	private static String capabilities() {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<WMT_MS_Capabilities version=\"1.1.1\"><Service><Name>OGC:WMS</Name>");
+		xml.append("<Title>Local WMS</Title></Service><Capability><Layer><Name>local</Name><Title>Local</Title>");
+		xml.append("<SRS>EPSG:4326</SRS>");
+		for (String[] layer : LAYERS)
+			xml.append("<Layer queryable=\"0\"><Name>").append(layer[0]).append("</Name><Title>").append(layer[1])
+					.append("</Title></Layer>");
+		xml.append("</Layer></Capability></WMT_MS_Capabilities>\n");
+		return xml.toString();
+	}
+
+	/**
+	 * Synthesize the image of a GetMap request in 'type', image/png or image/jpeg.
+	 */
+	private static byte[] map(Map<String, String> query, String type) throws IOException {
+		int width = Integer.parseInt(query.get("WIDTH")), height = Integer.parseInt(query.get("HEIGHT"));
+		String[] box = query.get("BBOX").split(",");
+		double minX = Double.parseDouble(box[0]), minY = Double.parseDouble(box[1]);
+		double maxX = Double.parseDouble(box[2]), maxY = Double.parseDouble(box[3]);
+		String[] layers = query.getOrDefault("LAYERS", "").split(",");
+
+		boolean jpeg = type.equals("image/jpeg");
+		BufferedImage image = new BufferedImage(width, height,
+				jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			for (String layer : layers) {
+				if (layer.equals(LAYERS[0][0])) {
+					// Shade the background by position, in bands of 10 degrees.
+					int[] row = new int[width];
+					for (int y = 0; y < height; y++) {
+						double lat = maxY - (y + 0.5) * (maxY - minY) / height;
+						for (int x = 0; x < width; x++) {
+							double lon = minX + (x + 0.5) * (maxX - minX) / width;
+							int r = Math.max(0, Math.min(255, (int) ((lon + 180) * 255 / 360)));
+							int b = Math.max(0, Math.min(255, (int) ((lat + 90) * 255 / 180)));
+							int band = ((int) Math.floor(lon / 10) + (int) Math.floor(lat / 10)) & 1;
+							row[x] = 0xff000000 | r << 16 | (band * 60 + 40) << 8 | b;
+						}
+						image.setRGB(0, y, width, 1, row, 0, width);
+					}
+				} else {
+					// Draw a grid line every 30 degrees and a marker per layer.
+					g.setColor(new Color(layer.hashCode() | 0xff000000));
+					g.setStroke(new BasicStroke(1));
+					for (int lon = -180; lon <= 180; lon += 30) {
+						int x = (int) Math.round((lon - minX) * width / (maxX - minX));
+						g.drawLine(x, 0, x, height);
+					}
+					for (int lat = -90; lat <= 90; lat += 30) {
+						int y = (int) Math.round((maxY - lat) * height / (maxY - minY));
+						g.drawLine(0, y, width, y);
+					}
+					int x = (int) Math.round(-minX * width / (maxX - minX));
+					int y = (int) Math.round(maxY * height / (maxY - minY));
+					g.fillOval(x - 4, y - 4, 8, 8);
+				}
+			}
+		} finally {
+			g.dispose();
+		}
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		ImageIO.write(image, jpeg ? "jpeg" : "png", encoded);
+		return encoded.toByteArray();
+	}
+
+	/**
+	 * Runs a server until it is killed.
+	 * @param args port, latency in milliseconds, bandwidth in bytes per second
+	 *            and failure rate, all optional
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		LocalWmsServer server = new LocalWmsServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+		server.setLatency(args.length > 1 ? Long.parseLong(args[1]) : 0);
+		server.setBandwidth(args.length > 2 ? Long.parseLong(args[2]) : 0);
+		server.setFailureRate(args.length > 3 ? Double.parseDouble(args[3]) : 0);
+		System.out.println("Serving " + server.getEndpoint());
+	}
+}
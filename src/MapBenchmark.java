@@ -0,0 +1,203 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.JLabel;
+
+/**
+ * Measures the latency from a button press to the map shown, without a
+ * window. It drives a Mapper through a reproducible random sequence of moves,
+ * zooms and resets against a LocalWmsServer, or another WMS service, and
+ * reports percentiles of the time from updateMap to the fetched image shown,
+ * and to the preview, the interim image and the fallback image shown.
+ */
+public class MapBenchmark {
+	private final Mapper mapper;
+	private final long[] shown; // time each request was shown, by request
+	private final long[][] displayed; // time each kind of image was first shown, by kind and request
+	private int first; // id of the first request
+	private int lastShown; // id of the most recent request shown
+
+	/**
+	 * Constructs a benchmark of a Mapper of the WMS service at 'endpoint'
+	 * making at most 'requests' requests.
+	 * @param endpoint URL of the WMS service
+	 * @param requests maximum number of requests
+	 * @param options the options of MapDialog: "tiles", "layers", "noprefetch",
+	 *            "nohedge" and "deadline=<ms>"
+	 */
+	public MapBenchmark(String endpoint, int requests, List<String> options) {
+		this.mapper = new Mapper(new JLabel(), 180, 90, endpoint);
+		this.shown = new long[requests];
+		this.displayed = new long[Mapper.Display.values().length][requests];
+		this.first = Integer.MIN_VALUE;
+		this.lastShown = Integer.MIN_VALUE;
+
+		mapper.setTileMode(options.contains("tiles"));
+		mapper.setLayerMode(options.contains("layers"));
+		if (!options.contains("noprefetch"))
+			mapper.setPrefetch(2, 6);
+		if (!options.contains("nohedge"))
+			mapper.getClient().setHedging(95, null);
+		mapper.setDeadline(2000);
+		for (String option : options)
+			if (option.startsWith("deadline="))
+				mapper.setDeadline(Long.parseLong(option.substring("deadline=".length())));
+		mapper.setDisplayListener(this::displayed);
+	}
+
+	synchronized private void displayed(int requestId, Mapper.Display kind) {
+		int i = requestId - first;
+		if (i < 0 || i >= shown.length)
+			return;
+		if (kind != Mapper.Display.FETCHED) {
+			if (displayed[kind.ordinal()][i] == 0)
+				displayed[kind.ordinal()][i] = System.nanoTime();
+		} else {
+			shown[i] = System.nanoTime();
+			lastShown = requestId;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Make 'clicks' random button presses 'pause' milliseconds apart after the
+	 * previous map is shown, and report the latencies.
+	 * @param clicks number of button presses
+	 * @param pause time between a map shown and the next press in milliseconds
+	 * @param seed seed of the sequence of presses
+	 * @throws Exception
+	 */
+	public void run(int clicks, long pause, long seed) throws Exception {
+		Random random = new Random(seed);
+		long[] started = new long[shown.length];
+		int timeouts = 0;
+
+		mapper.setLayers(String.join(",", layerNames()));
+		for (int click = 0; click <= clicks && click < shown.length; click++) {
+			// The first request shows the initial view.
+			if (click > 0) {
+				int action = random.nextInt(10);
+				if (action < 6)
+					mapper.move(random.nextBoolean() ? Mapper.MOVE_STEP : -Mapper.MOVE_STEP, action % 2);
+				else if (action < 9)
+					mapper.zoom(action == 8 ? Mapper.ZOOM_OUT : Mapper.ZOOM_IN);
+				else
+					mapper.reset();
+			}
+
+			long start = System.nanoTime();
+			int requestId;
+			synchronized (this) {
+				requestId = mapper.updateMap(false);
+				if (first == Integer.MIN_VALUE)
+					first = requestId;
+				started[requestId - first] = start;
+			}
+
+			// Wait for the map, at most 10 seconds.
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + 10000;
+				while (lastShown < requestId && System.currentTimeMillis() < deadline)
+					wait(Math.max(1, deadline - System.currentTimeMillis()));
+				if (lastShown < requestId)
+					timeouts++;
+			}
+			Thread.sleep(pause);
+		}
+
+		synchronized (this) {
+			report("shown", latencies(started, shown), timeouts);
+			for (Mapper.Display kind : Mapper.Display.values())
+				if (kind != Mapper.Display.FETCHED)
+					report(kind.name().toLowerCase(), latencies(started, displayed[kind.ordinal()]), 0);
+		}
+		System.out.println(mapper.getCache());
+		System.out.println(mapper.getMetrics());
+	}
+
+	private static String[] layerNames() {
+		String[] names = new String[LocalWmsServer.LAYERS.length];
+		for (int i = 0; i < names.length; i++)
+			names[i] = LocalWmsServer.LAYERS[i][0];
+		return names;
+	}
+
+	/**
+	 * Returns the sorted latencies in milliseconds of the requests shown.
+	 */
+	private static double[] latencies(long[] started, long[] ended) {
+		double[] latencies = new double[started.length];
+		int n = 0;
+		for (int i = 0; i < started.length; i++)
+			if (started[i] != 0 && ended[i] != 0)
+				latencies[n++] = (ended[i] - started[i]) / 1e6;
+		latencies = Arrays.copyOf(latencies, n);
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static void report(String what, double[] latencies, int timeouts) {
+		if (latencies.length == 0) {
+			System.out.println(String.format("%-8s no requests, %d timeouts", what, timeouts));
+			return;
+		}
+		System.out.println(String.format(
+				"%-8s n=%d p50=%.1f ms p90=%.1f ms p99=%.1f ms max=%.1f ms mean=%.1f ms, %d timeouts", what,
+				latencies.length, percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+				latencies[latencies.length - 1], Arrays.stream(latencies).average().orElse(0), timeouts));
+	}
+
+	/**
+	 * Returns the nearest-rank percentile 'p' of sorted values.
+	 */
+	static double percentile(double[] sorted, double p) {
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	/**
+	 * Runs the benchmark against a local server.
+	 * @param args clicks, pause in milliseconds, latency in milliseconds,
+	 *            bandwidth in bytes per second (0 for unlimited), failure
+	 *            rate, rate of slow responses and their further latency in
+	 *            milliseconds of the local server, all optional, followed by the
+	 *            options "tiles", "layers", "noprefetch", "nohedge",
+	 *            "deadline=<ms>" and "endpoint=<url>" to use another service
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+
+		List<String> numbers = new ArrayList<>(), options = new ArrayList<>();
+		for (String arg : args)
+			(Character.isDigit(arg.charAt(0)) ? numbers : options).add(arg);
+		int clicks = numbers.size() > 0 ? Integer.parseInt(numbers.get(0)) : 100;
+		long pause = numbers.size() > 1 ? Long.parseLong(numbers.get(1)) : 200;
+
+		LocalWmsServer server = null;
+		String endpoint = null;
+		for (String option : options)
+			if (option.startsWith("endpoint="))
+				endpoint = option.substring("endpoint=".length());
+		if (endpoint == null) {
+			server = new LocalWmsServer(0);
+			server.setLatency(numbers.size() > 2 ? Long.parseLong(numbers.get(2)) : 100);
+			server.setBandwidth(numbers.size() > 3 ? Long.parseLong(numbers.get(3)) : 0);
+			server.setFailureRate(numbers.size() > 4 ? Double.parseDouble(numbers.get(4)) : 0);
+			server.setSlowResponses(numbers.size() > 5 ? Double.parseDouble(numbers.get(5)) : 0,
+					numbers.size() > 6 ? Long.parseLong(numbers.get(6)) : 0);
+			endpoint = server.getEndpoint();
+		}
+
+		System.out.println(String.format("%d clicks %d ms apart against %s %s", clicks, pause, endpoint, options));
+		new MapBenchmark(endpoint, clicks + 1, options).run(clicks, pause, 1);
+		if (server != null) {
+			System.out.println(String.format("server: %d requests, %d failures, %d bytes", server.getRequests(),
+					server.getFailures(), server.getBytes()));
+			server.stop();
+		}
+		System.exit(0);
+	}
+}
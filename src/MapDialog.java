@@ -3,7 +3,10 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.management.JMException;
 
 public class MapDialog extends JFrame {
 
@@ -24,6 +27,27 @@ public class MapDialog extends JFrame {
 	private Mapper mapUpdater;
 
 	public MapDialog() throws Exception {
+		this(new String[0]);
+	}
+
+	/**
+	 * Opens the map window with the given options: "endpoint=<url>" fetches
+	 * the maps from the given WMS service, "tiles" composes the map out of
+	 * tiles, "layers" fetches and caches every layer on its own,
+	 * "cache=<directory>" keeps the fetched maps in the given directory
+	 * instead of ~/.mapdialog/cache, "nocache" disables the disk cache,
+	 * "noprefetch" disables prefetching the neighbouring views,
+	 * "secondary=<url>" sends hedged requests to another WMS service instead
+	 * of the same one, "nohedge" disables hedging, "deadline=<ms>" changes the
+	 * time after which the best cached image is shown from 2000 ms, 0 for
+	 * never, and "trace=<file>" logs the timings of every request to rolling
+	 * log files.
+	 * The metrics of the requests are registered as the MBean
+	 * MapDialog:type=MapMetrics,name="map".
+	 * @param options
+	 * @throws Exception
+	 */
+	public MapDialog(String[] options) throws Exception {
 
 		// Prepare the window and add the components to it
 
@@ -57,20 +81,53 @@ public class MapDialog extends JFrame {
 		leftPanel.setMaximumSize(new Dimension(100, 600));
 
 		// Create a Mapper for updating the image.
-		mapUpdater = new Mapper(imageLabel, 180, 90);
-
-		// Fetch a list of all available layers.
-		ArrayList<Tuple<String, String>> layerList = mapUpdater.fetchLayers();
-
-		// Go through every layer and add a checkbox to the GUI.
-		for (Tuple<String, String> layer : layerList) {
-			LayerCheckBox layerCheckBox = new LayerCheckBox(layer.first(), layer.last(), false);
-			layerCheckBox.setSelected(true); // Set the layer as selected
-			leftPanel.add(layerCheckBox);
+		String endpoint = Mapper.DEFAULT_ENDPOINT;
+		for (String option : options) {
+			if (option.startsWith("endpoint="))
+				endpoint = option.substring("endpoint=".length());
+		}
+		mapUpdater = new Mapper(imageLabel, 180, 90, endpoint);
+		boolean prefetch = true, hedge = true;
+		String secondary = null;
+		long deadline = 2000;
+		Path cacheDirectory = Paths.get(System.getProperty("user.home"), ".mapdialog", "cache");
+		for (String option : options) {
+			if (option.equals("tiles"))
+				mapUpdater.setTileMode(true);
+			else if (option.equals("layers"))
+				mapUpdater.setLayerMode(true);
+			else if (option.startsWith("cache="))
+				cacheDirectory = Paths.get(option.substring("cache=".length()));
+			else if (option.equals("nocache"))
+				cacheDirectory = null;
+			else if (option.equals("noprefetch"))
+				prefetch = false;
+			else if (option.equals("nohedge"))
+				hedge = false;
+			else if (option.startsWith("secondary="))
+				secondary = option.substring("secondary=".length());
+			else if (option.startsWith("deadline="))
+				deadline = Long.parseLong(option.substring("deadline=".length()));
+			else if (option.startsWith("trace="))
+				mapUpdater.getMetrics().setLog(option.substring("trace=".length()), 1 << 20, 5);
+		}
+		if (prefetch)
+			mapUpdater.setPrefetch(2, 6);
+		if (hedge)
+			mapUpdater.getClient().setHedging(95, secondary);
+		mapUpdater.setDeadline(deadline);
+		try {
+			mapUpdater.getMetrics().register("map");
+		} catch (JMException e) {
+			System.err.println("Metrics not registered: " + e);
+		}
+		if (cacheDirectory != null) {
+			try {
+				mapUpdater.setDiskCache(new MapDiskCache(cacheDirectory, 4096, 256L << 20));
+			} catch (IOException e) {
+				System.err.println("Disk cache disabled: " + e);
+			}
 		}
-
-		// Update the image.
-		updateImage(true);
 
 		// Add the buttons to the frame.
 		leftPanel.add(refreshB);
@@ -88,10 +145,37 @@ public class MapDialog extends JFrame {
 		pack();
 		setVisible(true);
 
+		// Fetch a list of all available layers without holding up the window, and
+		// show the map once the layers are known.
+		mapUpdater.fetchLayersAsync().whenComplete((layerList, e) -> SwingUtilities.invokeLater(() -> {
+			if (e != null) {
+				e.printStackTrace();
+			} else {
+				// Go through every layer and add a checkbox to the GUI above the buttons.
+				int index = 0;
+				for (Tuple<String, String> layer : layerList) {
+					LayerCheckBox layerCheckBox = new LayerCheckBox(layer.first(), layer.last(), false);
+					layerCheckBox.setSelected(true); // Set the layer as selected
+					leftPanel.add(layerCheckBox, index++);
+				}
+				leftPanel.revalidate();
+				pack();
+			}
+
+			// Update the image, with the default layers if there are no checkboxes.
+			try {
+				if (e != null)
+					mapUpdater.updateMap(false);
+				else
+					updateImage(false);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}));
 	}
 
 	public static void main(String[] args) throws Exception {
-		new MapDialog();
+		new MapDialog(args);
 	}
 
 	// Control button listener
@@ -108,7 +192,7 @@ public class MapDialog extends JFrame {
 			}
 			// Move left and update the image.
 			if (e.getSource() == leftB) {
-				mapUpdater.move(-0.3, 0);
+				mapUpdater.move(-Mapper.MOVE_STEP, 0);
 				try {
 					updateImage(false);
 				} catch (Exception ex) {
@@ -117,7 +201,7 @@ public class MapDialog extends JFrame {
 			}
 			// Move right and update the image.
 			if (e.getSource() == rightB) {
-				mapUpdater.move(0.3, 0);
+				mapUpdater.move(Mapper.MOVE_STEP, 0);
 				try {
 					updateImage(false);
 				} catch (Exception ex) {
@@ -126,7 +210,7 @@ public class MapDialog extends JFrame {
 			}
 			// Move up and update the image.
 			if (e.getSource() == upB) {
-				mapUpdater.move(0.3, 1);
+				mapUpdater.move(Mapper.MOVE_STEP, 1);
 				try {
 					updateImage(false);
 				} catch (Exception ex) {
@@ -135,7 +219,7 @@ public class MapDialog extends JFrame {
 			}
 			// Move down and update the image.
 			if (e.getSource() == downB) {
-				mapUpdater.move(-0.3, 1);
+				mapUpdater.move(-Mapper.MOVE_STEP, 1);
 				try {
 					updateImage(false);
 				} catch (Exception ex) {
@@ -144,7 +228,7 @@ public class MapDialog extends JFrame {
 			}
 			// Zoom in and update the image.
 			if (e.getSource() == zoomInB) {
-				mapUpdater.zoom(0.8);
+				mapUpdater.zoom(Mapper.ZOOM_IN);
 				try {
 					updateImage(false);
 				} catch (Exception ex) {
@@ -153,7 +237,7 @@ public class MapDialog extends JFrame {
 			}
 			// Zoom out and update the image.
 			if (e.getSource() == zoomOutB) {
-				mapUpdater.zoom(1.25);
+				mapUpdater.zoom(Mapper.ZOOM_OUT);
 				try {
 					updateImage(false);
 				} catch (Exception ex) {
@@ -0,0 +1,377 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A persistent cache of server responses, e.g. map images and capabilities,
+ * in a local directory. Every response is kept in its own file, and a
+ * memory-mapped index of fixed-size slots, addressed by a hash of the key,
+ * finds the file of a key without touching the directory. Responses expire
+ * after their time to live, and the least recently used responses are evicted
+ * to keep the cache within its size.
+ *
+ * A response is written to a temporary file which is then atomically moved in
+ * place before the index is updated, so a crash leaves at worst a file the
+ * index does not know of, which is removed when the cache is opened again.
+ *
+ * Only one process at a time may open a cache: the index is locked while the
+ * cache is open, as the counters of the cache and the removal of unknown
+ * files on opening assume that no one else writes to the directory.
+ */
+public class MapDiskCache {
+	private static final int MAGIC = 0x4d415043; // "MAPC"
+	private static final int HEADER = 16; // bytes before the first slot
+	private static final int SLOT = 32; // bytes of a slot
+
+	// Offsets within a slot. A slot is empty if its length is 0 and deleted if
+	// its length is -1.
+	private static final int HASH = 0, EXPIRES = 8, ACCESSED = 16, LENGTH = 24;
+
+	// Directories of the caches open in this process. A second channel of a
+	// locked index must not even be opened, as closing it would release the
+	// lock of the first.
+	private static final Set<Path> open = new HashSet<>();
+
+	private final Path directory;
+	private final int slots;
+	private final long maxBytes;
+	private final FileChannel channel; // of the index, holding its lock
+	private final FileLock lock; // of the index
+	private final MappedByteBuffer index;
+	private int used, deleted; // amount of used and deleted slots
+	private long bytes; // size of the cached files
+
+	/**
+	 * Opens the cache in 'directory', creating it if necessary, with room for
+	 * 'slots' responses and at most 'maxBytes' bytes of files.
+	 * @param directory directory of the cache
+	 * @param slots maximum number of cached responses
+	 * @param maxBytes maximum size of the cached responses in bytes
+	 * @throws IOException, also if the cache is open in another process or
+	 *             by another MapDiskCache
+	 */
+	public MapDiskCache(Path directory, int slots, long maxBytes) throws IOException {
+		this.directory = Files.createDirectories(directory).toRealPath();
+		this.slots = slots;
+		this.maxBytes = maxBytes;
+		synchronized (open) {
+			if (!open.add(this.directory))
+				throw new IOException("The cache in " + directory + " is in use");
+		}
+
+		long size = HEADER + (long) slots * SLOT;
+		Path indexFile = directory.resolve("index");
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			lock = channel.tryLock();
+			if (lock == null)
+				throw new IOException("The cache in " + directory + " is in use by another process");
+			this.channel = channel;
+
+			boolean valid = channel.size() == size;
+			index = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (!valid || index.getInt(0) != MAGIC || index.getInt(4) != slots) {
+				// A new or incompatible index: start empty.
+				for (int i = 0; i < size; i += 8)
+					index.putLong(i, 0);
+				index.putInt(0, MAGIC);
+				index.putInt(4, slots);
+			}
+
+			recover();
+		} catch (IOException | RuntimeException e) {
+			if (channel != null)
+				channel.close();
+			synchronized (open) {
+				open.remove(this.directory);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the cached response of 'key', or null if it is not cached or has
+	 * expired.
+	 * @param key key of the response, e.g. its URL
+	 * @return the response or null
+	 */
+	public byte[] get(String key) {
+		long hash = hash(key);
+		synchronized (this) {
+			int slot = find(hash);
+			if (slot < 0)
+				return null;
+			if (index.getLong(offset(slot) + EXPIRES) < System.currentTimeMillis()) {
+				remove(slot);
+				return null;
+			}
+			index.putLong(offset(slot) + ACCESSED, System.currentTimeMillis());
+		}
+
+		// Read outside of the lock and check that the file belongs to the key.
+		try {
+			byte[] file = Files.readAllBytes(fileOf(hash));
+			ByteBuffer buffer = ByteBuffer.wrap(file);
+			byte[] stored = new byte[buffer.getInt()];
+			buffer.get(stored);
+			if (new String(stored, StandardCharsets.UTF_8).equals(key)) {
+				byte[] data = new byte[buffer.remaining()];
+				buffer.get(data);
+				return data;
+			}
+		} catch (NoSuchFileException e) {
+			// Evicted meanwhile.
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Cache the response 'data' of 'key' for 'ttl' milliseconds.
+	 * @param key key of the response, e.g. its URL
+	 * @param data the response
+	 * @param ttl time to live in milliseconds
+	 */
+	public void put(String key, byte[] data, long ttl) {
+		long hash = hash(key);
+		byte[] stored = key.getBytes(StandardCharsets.UTF_8);
+		int length = Integer.BYTES + stored.length + data.length;
+		if (length > maxBytes)
+			return;
+
+		// Write the whole file before it becomes visible under its name.
+		try {
+			Path temp = Files.createTempFile(directory, null, ".tmp");
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocate(length);
+				buffer.putInt(stored.length).put(stored).put(data).flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(true);
+			}
+
+			synchronized (this) {
+				Files.move(temp, fileOf(hash), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+				int slot = find(hash);
+				if (slot >= 0) {
+					bytes -= index.getInt(offset(slot) + LENGTH);
+				} else {
+					// Keep the index at most 3/4 full so that probes stay short.
+					while (used >= slots * 3 / 4)
+						remove(leastRecentlyUsed());
+					if (used + deleted >= slots * 3 / 4)
+						rehash();
+					slot = free(hash);
+					used++;
+				}
+
+				long now = System.currentTimeMillis();
+				int o = offset(slot);
+				index.putLong(o + HASH, hash);
+				index.putLong(o + EXPIRES, now + ttl);
+				index.putLong(o + ACCESSED, now);
+				index.putInt(o + LENGTH, length);
+				bytes += length;
+
+				while (bytes > maxBytes) {
+					int lru = leastRecentlyUsed();
+					if (lru == slot)
+						break;
+					remove(lru);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write the index to the disk.
+	 */
+	synchronized public void flush() {
+		index.force();
+	}
+
+	/**
+	 * Write the index to the disk and release the cache for other processes.
+	 * @throws IOException
+	 */
+	synchronized public void close() throws IOException {
+		index.force();
+		lock.release();
+		channel.close();
+		synchronized (open) {
+			open.remove(directory);
+		}
+	}
+
+	synchronized public int size() {
+		return used;
+	}
+
+	synchronized public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Drop the slots whose files are missing or incomplete, and delete the files
+	 * and temporary files the index does not know of.
+	 */
+	private void recover() throws IOException {
+		for (int slot = 0; slot < slots; slot++) {
+			int o = offset(slot);
+			int length = index.getInt(o + LENGTH);
+			if (length == 0)
+				continue;
+			Path file = fileOf(index.getLong(o + HASH));
+			if (length > 0 && Files.exists(file) && Files.size(file) == length) {
+				used++;
+				bytes += length;
+			} else {
+				index.putInt(o + LENGTH, -1);
+				deleted++;
+			}
+		}
+		rehash();
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(".tmp"))
+					Files.deleteIfExists(file);
+				else if (name.length() == 16 && name.matches("[0-9a-f]+")
+						&& find(Long.parseUnsignedLong(name, 16)) < 0)
+					Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/**
+	 * Returns the slot of 'hash' or -1 if it is not in the index.
+	 */
+	private int find(long hash) {
+		for (int i = 0, slot = start(hash); i < slots; i++, slot = (slot + 1) % slots) {
+			int length = index.getInt(offset(slot) + LENGTH);
+			if (length == 0)
+				return -1;
+			if (length > 0 && index.getLong(offset(slot) + HASH) == hash)
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the first empty or deleted slot for 'hash'.
+	 */
+	private int free(long hash) {
+		for (int slot = start(hash);; slot = (slot + 1) % slots) {
+			int length = index.getInt(offset(slot) + LENGTH);
+			if (length <= 0) {
+				if (length < 0)
+					deleted--;
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Returns the used slot accessed least recently.
+	 */
+	private int leastRecentlyUsed() {
+		int lru = -1;
+		long oldest = Long.MAX_VALUE;
+		for (int slot = 0; slot < slots; slot++) {
+			int o = offset(slot);
+			if (index.getInt(o + LENGTH) > 0 && index.getLong(o + ACCESSED) < oldest) {
+				oldest = index.getLong(o + ACCESSED);
+				lru = slot;
+			}
+		}
+		return lru;
+	}
+
+	/**
+	 * Mark a slot as deleted and delete its file. A file that cannot be
+	 * deleted, e.g. one locked by another program, is only logged: the index
+	 * no longer knows of it, so it is deleted when the cache is opened again.
+	 */
+	private void remove(int slot) {
+		int o = offset(slot);
+		bytes -= index.getInt(o + LENGTH);
+		index.putInt(o + LENGTH, -1);
+		used--;
+		deleted++;
+		Path file = fileOf(index.getLong(o + HASH));
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			System.err.println("Cached file not deleted: " + e);
+		}
+	}
+
+	/**
+	 * Insert the used slots again into an index without deleted slots.
+	 */
+	private void rehash() {
+		long[][] entries = new long[used][];
+		int n = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			int o = offset(slot);
+			if (index.getInt(o + LENGTH) > 0)
+				entries[n++] = new long[] { index.getLong(o + HASH), index.getLong(o + EXPIRES),
+						index.getLong(o + ACCESSED), index.getInt(o + LENGTH) };
+			index.putLong(o + HASH, 0);
+			index.putLong(o + EXPIRES, 0);
+			index.putLong(o + ACCESSED, 0);
+			index.putLong(o + LENGTH, 0);
+		}
+		deleted = 0;
+
+		for (long[] entry : entries) {
+			int o = offset(free(entry[0]));
+			index.putLong(o + HASH, entry[0]);
+			index.putLong(o + EXPIRES, entry[1]);
+			index.putLong(o + ACCESSED, entry[2]);
+			index.putInt(o + LENGTH, (int) entry[3]);
+		}
+	}
+
+	private int start(long hash) {
+		return (int) Long.remainderUnsigned(hash, slots);
+	}
+
+	private static int offset(int slot) {
+		return HEADER + slot * SLOT;
+	}
+
+	private Path fileOf(long hash) {
+		return directory.resolve(String.format("%016x", hash));
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a key.
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
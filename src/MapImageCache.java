@@ -0,0 +1,258 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A two-tier cache of map images. The hot tier keeps decoded images for
+ * instant display, the cold tier keeps the compressed image bytes outside of
+ * the heap. Both tiers evict their least recently used entries to stay within
+ * their memory budgets; an image evicted from the hot tier can still be decoded
+ * from the cold tier. An optional disk cache below both tiers keeps the images
+ * across restarts.
+ */
+public class MapImageCache {
+	private final LinkedHashMap<MapKey, BufferedImage> hot;
+	private final LinkedHashMap<MapKey, ByteBuffer> cold;
+	private long hotBudget, coldBudget; // memory ceilings in bytes
+	private long hotBytes, coldBytes; // memory in use in bytes
+	private MapDiskCache disk; // persistent tier, null if none
+	private String diskEndpoint; // endpoint the images on disk are keyed by
+	private long diskTTL; // time to live of the images on disk in milliseconds
+
+	// Statistics
+	private long hotHits, coldHits, diskHits, misses, hotEvictions, coldEvictions;
+
+	/**
+	 * Constructs a cache using at most hotBudget bytes for decoded images and
+	 * coldBudget bytes for compressed images.
+	 * @param hotBudget memory ceiling of the decoded images in bytes
+	 * @param coldBudget memory ceiling of the compressed images in bytes
+	 */
+	public MapImageCache(long hotBudget, long coldBudget) {
+		this.hot = new LinkedHashMap<>(16, 0.75f, true);
+		this.cold = new LinkedHashMap<>(16, 0.75f, true);
+		this.hotBudget = hotBudget;
+		this.coldBudget = coldBudget;
+	}
+
+	/**
+	 * Keep the images also in a disk cache for 'ttl' milliseconds, keyed by their
+	 * URL at 'endpoint' so that caches of different services can share a disk
+	 * cache.
+	 * @param disk the disk cache or null for none
+	 * @param endpoint URL of the WMS service of the images
+	 * @param ttl time to live of the images on disk in milliseconds
+	 */
+	synchronized public void setDiskCache(MapDiskCache disk, String endpoint, long ttl) {
+		this.disk = disk;
+		this.diskEndpoint = endpoint;
+		this.diskTTL = ttl;
+	}
+
+	/**
+	 * Change the memory ceilings, evicting entries if necessary.
+	 * @param hotBudget memory ceiling of the decoded images in bytes
+	 * @param coldBudget memory ceiling of the compressed images in bytes
+	 */
+	synchronized public void setMemoryCeiling(long hotBudget, long coldBudget) {
+		this.hotBudget = hotBudget;
+		this.coldBudget = coldBudget;
+		evict();
+	}
+
+	/**
+	 * Returns the decoded image of 'key', decoding it from the cold tier or the
+	 * disk if necessary, or null if the image is not cached.
+	 * @param key key of the image
+	 * @return the image or null
+	 */
+	public BufferedImage get(MapKey key) {
+		ByteBuffer encoded;
+		MapDiskCache disk;
+		String endpoint;
+		synchronized (this) {
+			BufferedImage image = hot.get(key);
+			if (image != null) {
+				hotHits++;
+				MapTrace.recordCache(true);
+				return image;
+			}
+			encoded = cold.get(key);
+			disk = this.disk;
+			endpoint = diskEndpoint;
+			if (encoded != null)
+				coldHits++;
+		}
+		if (encoded != null)
+			MapTrace.recordCache(true);
+
+		// Read and decode outside of the lock and promote the image.
+		byte[] bytes;
+		if (encoded != null) {
+			bytes = new byte[encoded.capacity()];
+			encoded.duplicate().get(bytes);
+		} else {
+			bytes = disk == null ? null : disk.get(key.toURL(endpoint));
+			synchronized (this) {
+				if (bytes == null)
+					misses++;
+				else
+					diskHits++;
+			}
+			MapTrace.recordCache(bytes != null);
+			if (bytes == null)
+				return null;
+		}
+		try {
+			BufferedImage image = ImageDecoder.decode(bytes);
+			if (image != null) {
+				if (encoded == null)
+					putMemory(key, bytes, image);
+				else
+					putDecoded(key, image);
+			}
+			return image;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether 'key' is cached in memory, without counting a hit or a miss.
+	 * @param key key of the image
+	 * @return true if the image is in the hot or the cold tier
+	 */
+	synchronized public boolean contains(MapKey key) {
+		return hot.containsKey(key) || cold.containsKey(key);
+	}
+
+	/**
+	 * Returns the decoded image of 'key' if it is in the hot tier, without
+	 * decoding it from the other tiers and without counting a hit or a miss,
+	 * e.g. for the event dispatch thread.
+	 * @param key key of the image
+	 * @return the image or null
+	 */
+	synchronized public BufferedImage getDecoded(MapKey key) {
+		return hot.get(key);
+	}
+
+	/**
+	 * Returns the compressed bytes of 'key' or null if they are not cached.
+	 * @param key key of the image
+	 * @return the compressed image or null
+	 */
+	synchronized public byte[] getEncoded(MapKey key) {
+		ByteBuffer encoded = cold.get(key);
+		if (encoded == null)
+			return null;
+		byte[] bytes = new byte[encoded.capacity()];
+		encoded.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Cache an image both compressed and decoded, and write it to the disk cache.
+	 * @param key key of the image
+	 * @param encoded compressed image, e.g. PNG bytes
+	 * @param image decoded image
+	 */
+	public void put(MapKey key, byte[] encoded, BufferedImage image) {
+		putMemory(key, encoded, image);
+
+		MapDiskCache disk;
+		String endpoint;
+		long ttl;
+		synchronized (this) {
+			disk = this.disk;
+			endpoint = diskEndpoint;
+			ttl = diskTTL;
+		}
+		if (disk != null && encoded != null)
+			disk.put(key.toURL(endpoint), encoded, ttl);
+	}
+
+	synchronized private void putMemory(MapKey key, byte[] encoded, BufferedImage image) {
+		if (encoded != null && encoded.length <= coldBudget) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+			buffer.put(encoded).flip();
+			ByteBuffer old = cold.put(key, buffer);
+			coldBytes += encoded.length - (old == null ? 0 : old.capacity());
+		}
+		if (image != null)
+			putDecoded(key, image);
+		evict();
+	}
+
+	synchronized private void putDecoded(MapKey key, BufferedImage image) {
+		BufferedImage old = hot.put(key, image);
+		hotBytes += sizeOf(image) - (old == null ? 0 : sizeOf(old));
+		evict();
+	}
+
+	/**
+	 * Evict the least recently used entries of each tier until it fits within its
+	 * budget.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<MapKey, BufferedImage>> h = hot.entrySet().iterator();
+		while (hotBytes > hotBudget && h.hasNext()) {
+			hotBytes -= sizeOf(h.next().getValue());
+			h.remove();
+			hotEvictions++;
+		}
+		Iterator<Map.Entry<MapKey, ByteBuffer>> c = cold.entrySet().iterator();
+		while (coldBytes > coldBudget && c.hasNext()) {
+			coldBytes -= c.next().getValue().capacity();
+			c.remove();
+			coldEvictions++;
+		}
+	}
+
+	/**
+	 * Estimate the memory used by a decoded image.
+	 */
+	private static long sizeOf(BufferedImage image) {
+		return (long) image.getWidth() * image.getHeight() * 4;
+	}
+
+	synchronized public long getHotHits() {
+		return hotHits;
+	}
+
+	synchronized public long getColdHits() {
+		return coldHits;
+	}
+
+	synchronized public long getDiskHits() {
+		return diskHits;
+	}
+
+	synchronized public long getMisses() {
+		return misses;
+	}
+
+	synchronized public long getEvictions() {
+		return hotEvictions + coldEvictions;
+	}
+
+	synchronized public long getHotBytes() {
+		return hotBytes;
+	}
+
+	synchronized public long getColdBytes() {
+		return coldBytes;
+	}
+
+	@Override
+	synchronized public String toString() {
+		return String.format(
+				"hot hits: %d, cold hits: %d, disk hits: %d, misses: %d, evictions: %d/%d, memory: %d/%d bytes",
+				hotHits, coldHits, diskHits, misses, hotEvictions, coldEvictions, hotBytes, coldBytes);
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Identifies a GetMap image by its bounding box, layers, size and format.
+ */
+public class MapKey {
+	private final double minX, minY, maxX, maxY;
+	private final String layers;
+	private final int width, height;
+	private final String format;
+
+	/**
+	 * Constructs a key for a 'width' x 'height' image of the bounding box
+	 * (minX, minY, maxX, maxY) with the given layers and image format.
+	 * @param minX left edge of the bounding box
+	 * @param minY bottom edge of the bounding box
+	 * @param maxX right edge of the bounding box
+	 * @param maxY top edge of the bounding box
+	 * @param layers comma-separated list of layers
+	 * @param width width of the image in pixels
+	 * @param height height of the image in pixels
+	 * @param format MIME type of the image, e.g. image/png
+	 */
+	public MapKey(double minX, double minY, double maxX, double maxY, String layers, int width, int height,
+			String format) {
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.layers = layers;
+		this.width = width;
+		this.height = height;
+		this.format = format;
+	}
+
+	public String getLayers() {
+		return layers;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * Returns the bounding box as {minX, minY, maxX, maxY}.
+	 * @return the bounding box
+	 */
+	public double[] getBBox() {
+		return new double[] { minX, minY, maxX, maxY };
+	}
+
+	/**
+	 * Returns the GetMap request for this image at a WMS endpoint.
+	 * @param endpoint URL of the WMS service without a query
+	 * @return the GetMap URL
+	 */
+	public String toURL(String endpoint) {
+		return endpoint + "?SERVICE=WMS&VERSION=1.1.1&REQUEST=GetMap&BBOX=" + number(minX) + "," + number(minY) + ","
+				+ number(maxX) + "," + number(maxY) + "&SRS=EPSG:4326&WIDTH=" + width + "&HEIGHT=" + height
+				+ "&LAYERS=" + layers + "&STYLES=&FORMAT=" + format + "&TRANSPARENT=true";
+	}
+
+	/**
+	 * Format a coordinate without a decimal part if it is an integer.
+	 */
+	private static String number(double value) {
+		return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof MapKey))
+			return false;
+		MapKey k = (MapKey) o;
+		return minX == k.minX && minY == k.minY && maxX == k.maxX && maxY == k.maxY && width == k.width
+				&& height == k.height && layers.equals(k.layers) && format.equals(k.format);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = Double.hashCode(minX);
+		h = h * 31 + Double.hashCode(minY);
+		h = h * 31 + Double.hashCode(maxX);
+		h = h * 31 + Double.hashCode(maxY);
+		h = h * 31 + layers.hashCode();
+		h = h * 31 + width;
+		h = h * 31 + height;
+		return h * 31 + format.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return toURL("");
+	}
+}
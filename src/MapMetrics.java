@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the map updates of a Mapper: how many requests were made, shown,
+ * discarded because a newer one had been shown, superseded before they were
+ * fetched, failed or missed their deadline, how many fetches were hedged and
+ * how many hedges won, the limit of requests in flight and how many
+ * prefetches were shed, the cache hits and misses, and the mean time of each
+ * stage of the requests shown. The metrics can be registered as an MBean, and
+ * the trace of every request can be written to a rolling log.
+ */
+public class MapMetrics implements MapMetricsMBean {
+	private final MapImageCache cache;
+	private final MapScheduler scheduler;
+	private final WmsClient client;
+
+	private long requests, shown, discarded, failed, deadlinesMissed;
+	private final long[] nanos = new long[MapTrace.Stage.values().length]; // of the requests shown
+	private long totalNanos; // of the requests shown
+	private MapTrace last; // trace of the last request shown
+	private long baseHits, baseMisses, baseEvictions, baseSuperseded, baseHedged, baseHedgeWins,
+			baseShed; // at the last reset
+
+	private Logger log; // log of the traces, null if none
+
+	/**
+	 * Constructs the metrics of the requests going through 'scheduler',
+	 * 'cache' and 'client'.
+	 * @param cache the image cache
+	 * @param scheduler the request scheduler
+	 * @param client the WMS client
+	 */
+	public MapMetrics(MapImageCache cache, MapScheduler scheduler, WmsClient client) {
+		this.cache = cache;
+		this.scheduler = scheduler;
+		this.client = client;
+	}
+
+	/**
+	 * Register the metrics in the platform MBean server as
+	 * MapDialog:type=MapMetrics,name='name'.
+	 * @param name name of the metrics
+	 * @throws JMException
+	 */
+	public void register(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("MapDialog:type=MapMetrics,name=" + ObjectName.quote(name)));
+	}
+
+	/**
+	 * Write the trace of every request to log files named after 'pattern', of
+	 * at most 'limit' bytes each, keeping the 'count' most recent files.
+	 * @param pattern pattern of the file names, as of java.util.logging.FileHandler
+	 * @param limit maximum size of a file in bytes
+	 * @param count number of files
+	 * @throws IOException
+	 */
+	synchronized public void setLog(String pattern, int limit, int count) throws IOException {
+		FileHandler handler = new FileHandler(pattern, limit, count, true);
+		handler.setFormatter(new Formatter() {
+			@Override
+			public String format(LogRecord record) {
+				return String.format("%tF %<tT.%<tL %s%n", record.getMillis(), record.getMessage());
+			}
+		});
+		log = Logger.getAnonymousLogger();
+		log.setUseParentHandlers(false);
+		log.addHandler(handler);
+	}
+
+	synchronized void requested() {
+		requests++;
+	}
+
+	/**
+	 * Count a request whose image was shown.
+	 */
+	void shown(MapTrace trace) {
+		Logger log;
+		synchronized (this) {
+			shown++;
+			for (MapTrace.Stage stage : MapTrace.Stage.values())
+				nanos[stage.ordinal()] += trace.getNanos(stage);
+			totalNanos += trace.getTotalNanos();
+			last = trace;
+			log = this.log;
+		}
+		if (log != null)
+			log.info(trace + ", shown");
+	}
+
+	/**
+	 * Count a request whose image was not shown because a newer one had been.
+	 */
+	void discarded(MapTrace trace) {
+		Logger log;
+		synchronized (this) {
+			discarded++;
+			log = this.log;
+		}
+		if (log != null)
+			log.info(trace + ", discarded");
+	}
+
+	/**
+	 * Count a request that failed.
+	 */
+	void failed(MapTrace trace, Exception e) {
+		Logger log;
+		synchronized (this) {
+			failed++;
+			log = this.log;
+		}
+		if (log != null)
+			log.info(trace + ", failed: " + e);
+	}
+
+	/**
+	 * Count a request that was not shown within its deadline.
+	 */
+	void deadlineMissed(MapTrace trace) {
+		Logger log;
+		synchronized (this) {
+			deadlinesMissed++;
+			log = this.log;
+		}
+		if (log != null)
+			log.info(trace + ", deadline missed");
+	}
+
+	@Override
+	synchronized public long getRequests() {
+		return requests;
+	}
+
+	@Override
+	synchronized public long getShown() {
+		return shown;
+	}
+
+	@Override
+	synchronized public long getDiscarded() {
+		return discarded;
+	}
+
+	@Override
+	synchronized public long getSuperseded() {
+		return scheduler.getCoalesced() + scheduler.getAborted() - baseSuperseded;
+	}
+
+	@Override
+	synchronized public long getFailed() {
+		return failed;
+	}
+
+	@Override
+	synchronized public long getDeadlinesMissed() {
+		return deadlinesMissed;
+	}
+
+	@Override
+	synchronized public long getHedged() {
+		return client.getHedged() - baseHedged;
+	}
+
+	@Override
+	synchronized public long getHedgeWins() {
+		return client.getHedgeWins() - baseHedgeWins;
+	}
+
+	@Override
+	public double getConcurrencyLimit() {
+		return client.getLimiter().getLimit();
+	}
+
+	@Override
+	synchronized public long getShed() {
+		return client.getLimiter().getShed() - baseShed;
+	}
+
+	@Override
+	synchronized public long getCacheHits() {
+		return cache.getHotHits() + cache.getColdHits() + cache.getDiskHits() - baseHits;
+	}
+
+	@Override
+	synchronized public long getCacheMisses() {
+		return cache.getMisses() - baseMisses;
+	}
+
+	@Override
+	synchronized public long getCacheEvictions() {
+		return cache.getEvictions() - baseEvictions;
+	}
+
+	@Override
+	public double getMeanQueueMillis() {
+		return mean(MapTrace.Stage.QUEUE);
+	}
+
+	@Override
+	public double getMeanUrlMillis() {
+		return mean(MapTrace.Stage.URL);
+	}
+
+	@Override
+	public double getMeanTtfbMillis() {
+		return mean(MapTrace.Stage.TTFB);
+	}
+
+	@Override
+	public double getMeanDownloadMillis() {
+		return mean(MapTrace.Stage.DOWNLOAD);
+	}
+
+	@Override
+	public double getMeanDecodeMillis() {
+		return mean(MapTrace.Stage.DECODE);
+	}
+
+	@Override
+	public double getMeanRenderMillis() {
+		return mean(MapTrace.Stage.RENDER);
+	}
+
+	@Override
+	public double getMeanPaintMillis() {
+		return mean(MapTrace.Stage.PAINT);
+	}
+
+	@Override
+	synchronized public double getMeanTotalMillis() {
+		return shown == 0 ? 0 : totalNanos / 1e6 / shown;
+	}
+
+	@Override
+	synchronized public String getLastTrace() {
+		return last == null ? "" : last.toString();
+	}
+
+	@Override
+	synchronized public void reset() {
+		requests = shown = discarded = failed = deadlinesMissed = totalNanos = 0;
+		Arrays.fill(nanos, 0);
+		last = null;
+		baseHits = cache.getHotHits() + cache.getColdHits() + cache.getDiskHits();
+		baseMisses = cache.getMisses();
+		baseEvictions = cache.getEvictions();
+		baseSuperseded = scheduler.getCoalesced() + scheduler.getAborted();
+		baseHedged = client.getHedged();
+		baseHedgeWins = client.getHedgeWins();
+		baseShed = client.getLimiter().getShed();
+	}
+
+	synchronized private double mean(MapTrace.Stage stage) {
+		return shown == 0 ? 0 : nanos[stage.ordinal()] / 1e6 / shown;
+	}
+
+	@Override
+	synchronized public String toString() {
+		return String.format(
+				"requests: %d, shown: %d, discarded: %d, superseded: %d, failed: %d, deadlines missed: %d, "
+						+ "hedged: %d/%d, limit: %.1f, shed: %d, cache hits: %d, misses: %d, "
+						+ "mean: total %.1f ms, ttfb %.1f ms, download %.1f ms, decode %.1f ms, paint %.1f ms",
+				requests, shown, discarded, getSuperseded(), failed, deadlinesMissed, getHedgeWins(), getHedged(),
+				getConcurrencyLimit(), getShed(), getCacheHits(), getCacheMisses(),
+				getMeanTotalMillis(), getMeanTtfbMillis(), getMeanDownloadMillis(), getMeanDecodeMillis(),
+				getMeanPaintMillis());
+	}
+}
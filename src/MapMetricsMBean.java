@@ -0,0 +1,50 @@
+/**
+ * Management interface of MapMetrics.
+ */
+public interface MapMetricsMBean {
+	long getRequests();
+
+	long getShown();
+
+	long getDiscarded();
+
+	long getSuperseded();
+
+	long getFailed();
+
+	long getDeadlinesMissed();
+
+	long getHedged();
+
+	long getHedgeWins();
+
+	double getConcurrencyLimit();
+
+	long getShed();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getCacheEvictions();
+
+	double getMeanQueueMillis();
+
+	double getMeanUrlMillis();
+
+	double getMeanTtfbMillis();
+
+	double getMeanDownloadMillis();
+
+	double getMeanDecodeMillis();
+
+	double getMeanRenderMillis();
+
+	double getMeanPaintMillis();
+
+	double getMeanTotalMillis();
+
+	String getLastTrace();
+
+	void reset();
+}
@@ -0,0 +1,107 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches views the user is likely to ask for next in the background, so
+ * that they are already cached when asked for. The prefetches run on a few
+ * low-priority threads, at most a fixed number of views per round, and a new
+ * round or a user action cancels the prefetches still pending, except the
+ * one of the view the user asked for.
+ */
+public class MapPrefetcher {
+	private final ExecutorService pool;
+	private final int maxViews; // maximum number of views prefetched per round
+	private final Map<Object, Future<?>> pending; // prefetches by the key of their view
+
+	// Statistics
+	private long submitted, cancelled, joined;
+
+	/**
+	 * Constructs a MapPrefetcher fetching at most 'threads' views at once and
+	 * at most 'maxViews' views per round.
+	 * @param threads maximum number of views fetched at once
+	 * @param maxViews maximum number of views prefetched per round
+	 */
+	public MapPrefetcher(int threads, int maxViews) {
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "map-prefetch");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+		this.maxViews = maxViews;
+		this.pending = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Cancel the previous round and start prefetching 'views' in order, most
+	 * likely first, within the budget of a round.
+	 * @param views fetches of the views by the keys of the views, in order
+	 */
+	synchronized public void prefetch(Map<?, Callable<?>> views) {
+		cancel();
+		for (Map.Entry<?, Callable<?>> entry : views.entrySet()) {
+			if (pending.size() == maxViews)
+				break;
+			Callable<?> view = entry.getValue();
+			pending.put(entry.getKey(), pool.submit(() -> {
+				try {
+					return view.call();
+				} catch (InterruptedException e) {
+					return null;
+				} catch (Exception e) {
+					// A failed prefetch is fetched again when it is asked for. A
+					// shed one is no error.
+					if (!ConcurrencyLimiter.isShed(e))
+						System.err.println("Prefetch failed: " + e);
+					return null;
+				}
+			}));
+			submitted++;
+		}
+	}
+
+	/**
+	 * Cancel the prefetches not yet finished, interrupting the running ones.
+	 */
+	synchronized public void cancel() {
+		for (Future<?> view : pending.values()) {
+			if (view.cancel(true))
+				cancelled++;
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Cancel the prefetches not yet finished except the one of the view 'key',
+	 * which is kept until the next round or cancel, so that the fetch of the
+	 * view can join it instead of fetching the view again.
+	 * @param key key of the view asked for
+	 * @return the prefetch of the view or null if there is none
+	 */
+	synchronized public Future<?> cancelExcept(Object key) {
+		Future<?> kept = pending.remove(key);
+		cancel();
+		if (kept != null) {
+			pending.put(key, kept);
+			joined++;
+		}
+		return kept;
+	}
+
+	synchronized public long getSubmitted() {
+		return submitted;
+	}
+
+	synchronized public long getCancelled() {
+		return cancelled;
+	}
+
+	synchronized public long getJoined() {
+		return joined;
+	}
+}
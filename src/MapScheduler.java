@@ -0,0 +1,77 @@
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs map updates one at a time, only ever for the latest request. A request
+ * waits for a short debounce delay before it starts, so a burst of requests
+ * coalesces into the last one, and a new request aborts the one in flight.
+ */
+public class MapScheduler {
+	private final ScheduledThreadPoolExecutor executor;
+	private final long debounce; // delay before a request starts in milliseconds
+	private Future<?> current; // latest request
+	private AtomicBoolean started; // whether the latest request has started
+
+	// Statistics
+	private long submitted, coalesced, aborted;
+
+	/**
+	 * Constructs a MapScheduler that starts a request 'debounce' milliseconds
+	 * after it is submitted unless a newer one is submitted meanwhile.
+	 * @param debounce delay before a request starts in milliseconds
+	 */
+	public MapScheduler(long debounce) {
+		this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "map-update");
+			t.setDaemon(true);
+			return t;
+		});
+		this.executor.setRemoveOnCancelPolicy(true);
+		this.debounce = debounce;
+	}
+
+	/**
+	 * Supersede the previous request with 'request'.
+	 * @param request the request
+	 * @return the future of the request, cancelled if it is superseded
+	 */
+	synchronized public Future<?> submit(Runnable request) {
+		if (current != null && current.cancel(true)) {
+			if (started.get())
+				aborted++;
+			else
+				coalesced++;
+		}
+
+		AtomicBoolean started = new AtomicBoolean();
+		this.started = started;
+		current = executor.schedule(() -> {
+			started.set(true);
+			request.run();
+		}, debounce, TimeUnit.MILLISECONDS);
+		submitted++;
+		return current;
+	}
+
+	/**
+	 * Returns whether the latest request is still waiting or running.
+	 * @return true if a request is pending or running
+	 */
+	synchronized public boolean isBusy() {
+		return current != null && !current.isDone();
+	}
+
+	synchronized public long getSubmitted() {
+		return submitted;
+	}
+
+	synchronized public long getCoalesced() {
+		return coalesced;
+	}
+
+	synchronized public long getAborted() {
+		return aborted;
+	}
+}
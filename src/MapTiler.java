@@ -0,0 +1,182 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Renders map views out of a fixed grid of square tiles. The grid of a zoom
+ * level is anchored to the corner of the map, so the bounding box of a tile
+ * only depends on the zoom level and its column and row, and panning reuses
+ * every tile that stays in view. Missing tiles are fetched in parallel.
+ */
+public class MapTiler {
+	public static final int TILE_SIZE = 256; // width and height of a tile in pixels
+
+	private final WmsClient client;
+	private final int[] axisLimit;
+	private final ExecutorService pool;
+	private final MapImageCache cache;
+
+	/**
+	 * Constructs a MapTiler for a map with half-width xMax and half-height yMax.
+	 *
+	 * @param client
+	 *            client of the WMS service
+	 * @param xMax
+	 *            half-width of the map
+	 * @param yMax
+	 *            half-height of the map
+	 * @param threads
+	 *            maximum number of tiles fetched at once
+	 * @param cache
+	 *            cache of the fetched tiles
+	 */
+	public MapTiler(WmsClient client, int xMax, int yMax, int threads, MapImageCache cache) {
+		this.client = client;
+		this.axisLimit = new int[] { xMax, yMax };
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "map-tile");
+			t.setDaemon(true);
+			return t;
+		});
+		this.cache = cache;
+	}
+
+	/**
+	 * Render the view with centre 'centre' and half-dimensions 'ds' into an image
+	 * of 'width' x 'height' pixels, fetching only the tiles not yet cached.
+	 * @param centre centre of the view
+	 * @param ds half-width and half-height of the view
+	 * @param width width of the image in pixels
+	 * @param height height of the image in pixels
+	 * @param layers comma-separated list of layers
+	 * @param priority priority of the requests of the tiles
+	 * @return the rendered view
+	 * @throws InterruptedException
+	 */
+	public BufferedImage render(int[] centre, int[] ds, int width, int height, String layers,
+			ConcurrencyLimiter.Priority priority) throws InterruptedException {
+		// Size of a pixel and a tile in map units at this zoom level.
+		double dx = 2.0 * ds[0] / width, dy = 2.0 * ds[1] / height;
+		double tileWidth = TILE_SIZE * dx, tileHeight = TILE_SIZE * dy;
+
+		// Position of the top-left corner of the view in pixels from the top-left
+		// corner of the map.
+		double x0 = (centre[0] - ds[0] + axisLimit[0]) / dx;
+		double y0 = (axisLimit[1] - centre[1] - ds[1]) / dy;
+
+		int firstCol = (int) Math.floor(x0 / TILE_SIZE), lastCol = (int) Math.floor((x0 + width - 1) / TILE_SIZE);
+		int firstRow = (int) Math.floor(y0 / TILE_SIZE), lastRow = (int) Math.floor((y0 + height - 1) / TILE_SIZE);
+
+		// Fetch the missing tiles in parallel.
+		List<MapKey> keys = new ArrayList<>();
+		List<int[]> cells = new ArrayList<>();
+		List<BufferedImage> cached = new ArrayList<>();
+		List<Future<BufferedImage>> fetches = new ArrayList<>();
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int col = firstCol; col <= lastCol; col++) {
+				MapKey key = tileKey(axisLimit, col, row, tileWidth, tileHeight, layers);
+				BufferedImage tile = cache.get(key);
+
+				keys.add(key);
+				cells.add(new int[] { col, row });
+				cached.add(tile);
+				fetches.add(tile != null ? null : pool.submit(MapTrace.wrap(() -> fetchTile(key, priority))));
+			}
+		}
+
+		// Draw every tile at its place in the view.
+		BufferedImage image = ImageDecoder.createCompatible(width, height);
+		Graphics2D g = image.createGraphics();
+		try {
+			for (int i = 0; i < keys.size(); i++) {
+				BufferedImage tile = cached.get(i);
+
+				if (fetches.get(i) != null) {
+					try {
+						tile = fetches.get(i).get();
+					} catch (InterruptedException e) {
+						for (Future<BufferedImage> fetch : fetches)
+							if (fetch != null)
+								fetch.cancel(true);
+						throw e;
+					} catch (Exception e) {
+						// Leave the area of a failed tile empty.
+						if (!ConcurrencyLimiter.isShed(e))
+							e.printStackTrace();
+					}
+				}
+
+				if (tile != null)
+					g.drawImage(tile, (int) Math.round(cells.get(i)[0] * TILE_SIZE - x0),
+							(int) Math.round(cells.get(i)[1] * TILE_SIZE - y0), null);
+			}
+		} finally {
+			g.dispose();
+		}
+
+		return image;
+	}
+
+	/**
+	 * Returns the keys of the tiles covering 'region' in a map with half-width
+	 * axisLimit[0] and half-height axisLimit[1], at the zoom level of views with
+	 * half-dimensions 'ds' rendered into 'width' x 'height' images. These are
+	 * the tiles render fetches for the views within the region, e.g. to seed a
+	 * cache.
+	 * @param axisLimit half-width and half-height of the map
+	 * @param ds half-width and half-height of the views
+	 * @param width width of the views in pixels
+	 * @param height height of the views in pixels
+	 * @param region {minX, minY, maxX, maxY} of the region
+	 * @param layers comma-separated list of layers
+	 * @return the keys of the tiles, row by row
+	 */
+	public static List<MapKey> tileKeys(int[] axisLimit, int[] ds, int width, int height, double[] region,
+			String layers) {
+		double tileWidth = TILE_SIZE * 2.0 * ds[0] / width, tileHeight = TILE_SIZE * 2.0 * ds[1] / height;
+		int firstCol = (int) Math.floor((Math.max(region[0], -axisLimit[0]) + axisLimit[0]) / tileWidth);
+		int lastCol = (int) Math.ceil((Math.min(region[2], axisLimit[0]) + axisLimit[0]) / tileWidth) - 1;
+		int firstRow = (int) Math.floor((axisLimit[1] - Math.min(region[3], axisLimit[1])) / tileHeight);
+		int lastRow = (int) Math.ceil((axisLimit[1] - Math.max(region[1], -axisLimit[1])) / tileHeight) - 1;
+
+		List<MapKey> keys = new ArrayList<>();
+		for (int row = firstRow; row <= lastRow; row++)
+			for (int col = firstCol; col <= lastCol; col++)
+				keys.add(tileKey(axisLimit, col, row, tileWidth, tileHeight, layers));
+		return keys;
+	}
+
+	/**
+	 * Returns the key of the tile at 'col', 'row' of the grid anchored to the
+	 * top-left corner of the map.
+	 */
+	private static MapKey tileKey(int[] axisLimit, int col, int row, double tileWidth, double tileHeight,
+			String layers) {
+		double minX = -axisLimit[0] + col * tileWidth;
+		double maxY = axisLimit[1] - row * tileHeight;
+		return new MapKey(minX, maxY - tileHeight, minX + tileWidth, maxY, layers, TILE_SIZE, TILE_SIZE, "image/png");
+	}
+
+	/**
+	 * Download, decode and cache a tile.
+	 * @param key key of the tile
+	 * @param priority priority of the request
+	 * @return the tile or null if the response was not an image
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private BufferedImage fetchTile(MapKey key, ConcurrencyLimiter.Priority priority)
+			throws IOException, InterruptedException {
+		byte[] bytes = client.getMap(key, priority);
+		BufferedImage tile = ImageDecoder.decode(bytes);
+		if (tile != null)
+			cache.put(key, bytes, tile);
+		return tile;
+	}
+}
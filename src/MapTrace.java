@@ -0,0 +1,164 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings of the stages of one map update request. The stages of the fetches
+ * a request makes, e.g. one per tile, are summed up. The trace of a request
+ * is bound to the thread working on it, and carried over to the pools it
+ * hands work to with wrap(), so that the client, the cache and the decoder
+ * record their stages without passing the trace along.
+ */
+public class MapTrace {
+	/**
+	 * Stages of a request: waiting for the scheduler, building the GetMap URL,
+	 * waiting for the response headers, downloading the body, decoding, the
+	 * whole rendering of the view and swapping the image in on the EDT.
+	 */
+	public enum Stage {
+		QUEUE, URL, TTFB, DOWNLOAD, DECODE, RENDER, PAINT
+	}
+
+	private static final ThreadLocal<MapTrace> current = new ThreadLocal<>();
+
+	private final int requestId;
+	private final long created; // System.nanoTime() of the request
+	private final AtomicLongArray nanos; // time of each stage
+	private final AtomicIntegerArray counts; // number of times each stage was recorded
+	private final AtomicIntegerArray cache; // hits and misses of the memory and disk caches
+	private volatile long ended; // System.nanoTime() of the end, 0 until then
+
+	/**
+	 * Constructs the trace of request 'requestId', starting now.
+	 * @param requestId id of the request
+	 */
+	public MapTrace(int requestId) {
+		this.requestId = requestId;
+		this.created = System.nanoTime();
+		this.nanos = new AtomicLongArray(Stage.values().length);
+		this.counts = new AtomicIntegerArray(Stage.values().length);
+		this.cache = new AtomicIntegerArray(2);
+	}
+
+	/**
+	 * Returns the trace bound to the current thread, or null if there is none.
+	 * @return the trace or null
+	 */
+	public static MapTrace current() {
+		return current.get();
+	}
+
+	/**
+	 * Bind a trace to the current thread.
+	 * @param trace the trace or null to unbind
+	 */
+	public static void set(MapTrace trace) {
+		if (trace == null)
+			current.remove();
+		else
+			current.set(trace);
+	}
+
+	/**
+	 * Record a stage of the trace of the current thread, if any, that started
+	 * at 'start' and ends now.
+	 * @param stage the stage
+	 * @param start System.nanoTime() of the start of the stage
+	 */
+	public static void record(Stage stage, long start) {
+		MapTrace trace = current.get();
+		if (trace != null)
+			trace.add(stage, System.nanoTime() - start);
+	}
+
+	/**
+	 * Count a cache hit or miss in the trace of the current thread, if any.
+	 * @param hit true for a hit
+	 */
+	public static void recordCache(boolean hit) {
+		MapTrace trace = current.get();
+		if (trace != null)
+			trace.cache.incrementAndGet(hit ? 0 : 1);
+	}
+
+	/**
+	 * Returns 'task' bound to the trace of the current thread, if any, on the
+	 * thread that will run it.
+	 * @param task the task
+	 * @return the bound task
+	 */
+	public static <T> Callable<T> wrap(Callable<T> task) {
+		MapTrace trace = current.get();
+		if (trace == null)
+			return task;
+		return () -> {
+			set(trace);
+			try {
+				return task.call();
+			} finally {
+				set(null);
+			}
+		};
+	}
+
+	/**
+	 * Add 'nanos' nanoseconds to a stage.
+	 * @param stage the stage
+	 * @param nanos the time in nanoseconds
+	 */
+	public void add(Stage stage, long nanos) {
+		this.nanos.addAndGet(stage.ordinal(), nanos);
+		counts.incrementAndGet(stage.ordinal());
+	}
+
+	/**
+	 * End the trace now.
+	 */
+	public void end() {
+		ended = System.nanoTime();
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getNanos(Stage stage) {
+		return nanos.get(stage.ordinal());
+	}
+
+	public int getCount(Stage stage) {
+		return counts.get(stage.ordinal());
+	}
+
+	public int getCacheHits() {
+		return cache.get(0);
+	}
+
+	public int getCacheMisses() {
+		return cache.get(1);
+	}
+
+	/**
+	 * Returns the time from the request to its end, or to now if it has not
+	 * ended.
+	 * @return the total time in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return (ended != 0 ? ended : System.nanoTime()) - created;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder(String.format("request %d: total %.1f ms", requestId, getTotalNanos() / 1e6));
+		for (Stage stage : Stage.values()) {
+			s.append(String.format(", %s %.1f", stage.name().toLowerCase(), getNanos(stage) / 1e6));
+			if (getCount(stage) > 1)
+				s.append(" (").append(getCount(stage)).append(")");
+		}
+		return s.append(String.format(", cache %d/%d", getCacheHits(), getCacheHits() + getCacheMisses())).toString();
+	}
+}
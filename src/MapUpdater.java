@@ -1,11 +1,11 @@
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.CompletionException;
 
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.xpath.XPath;
@@ -17,12 +17,7 @@ import org.w3c.dom.NodeList;
 
 public class MapUpdater implements Runnable {
 	private final JLabel imageLabel;
-	private final String getXML = "http://demo.mapserver.org/cgi-bin/wms?SERVICE=WMS&VERSION=1.1.1" + 
-    		"&REQUEST=GetCapabilities";
-	private final String getMap = "http://demo.mapserver.org/cgi-bin/wms?SERVICE=WMS&VERSION=1.1.1" + 
-			"&REQUEST=GetMap&BBOX=%d,%d,%d,%d&SRS=EPSG:4326" + 
-			"&WIDTH=953&HEIGHT=480&LAYERS=%s" + 
-			"&STYLES=&FORMAT=image/png&TRANSPARENT=true";
+	private final WmsClient client;
 	
 	// Kartan rajat
 	private final int xBound = 180;
@@ -36,7 +31,17 @@ public class MapUpdater implements Runnable {
 	private String layers;
 	
 	public MapUpdater(JLabel imageLabel) {
+		this(imageLabel, Mapper.DEFAULT_ENDPOINT);
+	}
+	
+	/**
+	 * Luo MapUpdaterin, joka hakee kartat annetusta WMS-palvelusta.
+	 * @param imageLabel kartan näyttävä JLabel
+	 * @param endpoint WMS-palvelun osoite ilman kyselyä
+	 */
+	public MapUpdater(JLabel imageLabel, String endpoint) {
 		this.imageLabel = imageLabel;
+		this.client = new WmsClient(endpoint);
 		this.xMin = -xBound;
 		this.xMax = xBound;
 		this.yMin = -yBound;
@@ -73,8 +78,6 @@ public class MapUpdater implements Runnable {
 		xMin = xCenter - newXWidth / 2;
 		yMax = yCenter + newYHeight / 2;
 		yMin = yCenter - newYHeight / 2;
-		
-		System.out.println(String.format("xmin: %d, xmax: %d; ymin: %d, ymax: %d",xMin,xMax,yMin,yMax));
 	}
 	
 	/**
@@ -107,7 +110,6 @@ public class MapUpdater implements Runnable {
 		if (yBound < yMax + moveAmount) { // Tarkastetaan onko yläreuna edelleen alueella
 			moveAmount = yBound - yMax; // Rajoitetaan siirtymän määrä alueen reunaan jos tarpeen
 		}
-		System.out.println(moveAmount);
 		yMin += moveAmount;
 		yMax += moveAmount;
 	}
@@ -121,11 +123,11 @@ public class MapUpdater implements Runnable {
 		ArrayList<Tuple<String, String>> layerList = new ArrayList<>();
 		
 		// Tee GetCapabilities kysely
-        URL getCapabilitiesURL = new URL(getXML);        
+        byte[] capabilities = client.getCapabilities();
         
         // Rakenna vastauksesta XML-dokumentti
         DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        Document doc = docBuilder.parse(getCapabilitiesURL.openStream());
+        Document doc = docBuilder.parse(new ByteArrayInputStream(capabilities));
         
         // Hae kaikki mahdolliset Layerit dokumentista XPathilla
         XPath xPath = XPathFactory.newInstance().newXPath();
@@ -143,11 +145,21 @@ public class MapUpdater implements Runnable {
 
 	@Override
 	public void run() {
-		try {
-			imageLabel.setIcon(new ImageIcon(new URL(String.format(getMap, xMin, yMin, xMax, yMax, layers))));
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-		}
+		// Hae kartta asynkronisesti ja näytä se, kun vastaus saapuu
+		client.getMapAsync(new MapKey(xMin, yMin, xMax, yMax, layers, 953, 480, "image/png"))
+				.thenAccept(bytes -> {
+					// Pura kuva tässä säikeessä ja vaihda se näkyviin EDT:ssä
+					try {
+						ImageIcon image = new ImageIcon(ImageDecoder.decode(bytes));
+						SwingUtilities.invokeLater(() -> imageLabel.setIcon(image));
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				})
+				.exceptionally(e -> {
+					e.printStackTrace();
+					return null;
+				});
 		
 	}
 	
@@ -1,32 +1,169 @@
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-import javax.swing.ImageIcon;
+import javax.swing.Icon;
 import javax.swing.JLabel;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
+import javax.swing.SwingUtilities;
+import javax.xml.stream.XMLStreamException;
 
 public class Mapper {
+	public static final String DEFAULT_ENDPOINT = "http://demo.mapserver.org/cgi-bin/wms";
+	public static final double MOVE_STEP = 0.3; // move of a button press, in proportion to the view
+	public static final double ZOOM_IN = 0.8, ZOOM_OUT = 1.25; // zoom factors of a button press
+
 	private final int[] axisLimit;
 	private final JLabel imgLabel;
-	private final String xmlURL = "http://demo.mapserver.org/cgi-bin/wms?SERVICE=WMS&VERSION=1.1.1"
-			+ "&REQUEST=GetCapabilities";
-	private final String mapURL = "http://demo.mapserver.org/cgi-bin/wms?SERVICE=WMS&VERSION=1.1.1"
-			+ "&REQUEST=GetMap&BBOX=%d,%d,%d,%d&SRS=EPSG:4326" + "&WIDTH=953&HEIGHT=480&LAYERS=%s"
-			+ "&STYLES=&FORMAT=image/png&TRANSPARENT=true";
+	private final WmsClient client;
+	private final int width = 953, height = 480; // default size of the map image on the screen
+	private final int maxPixels = 4096; // largest width or height of an image the server is asked for
+	private final long imageTTL = 24 * 3600 * 1000L; // time to live of images on disk
+	private final long capabilitiesTTL = 30 * 24 * 3600 * 1000L; // capabilities on disk, revalidated on use
 
 	private int[] centre, ds;
 	private String layers;
+	private MapTiler tiler; // Tile renderer, null unless in tile mode
+	private volatile ExecutorService layerPool; // Fetches layers separately, null unless in layer mode
+	private final MapImageCache cache; // Cache of fetched images and tiles
+	private MapDiskCache disk; // Persistent cache of responses, null if none
+	private MapPrefetcher prefetcher; // Prefetcher of neighbouring views, null if none
+	private final MapScheduler scheduler; // Runs the latest update request
+	private final ExecutorService interimPool; // Fetches interim images alongside the full ones
+	private final MapMetrics metrics; // Metrics of the update requests
 
 	private int nextRequestId; // Id of next update request
 	private int mapId; // Id of most recent map updated by Mapper
+	private int fetchedId; // Id of most recent request whose fetched image was shown
+	private BufferedImage shownImage; // Most recent fetched image shown, for previews
+	private int[][] shownView; // {centre, ds} of shownImage
+	private boolean preview = true; // Whether to show a preview while fetching
+	private volatile Set<String> opaqueLayers = Set.of("bluemarble"); // Base layers that may be fetched as JPEG
+	private volatile double jpegBandwidth = 1 << 20; // Bytes per second below which opaque views are JPEG
+	private volatile double interimMillis = 200; // Estimated time an interim image must save to be shown
+	private volatile long deadline; // Time in milliseconds after which the best cached image is shown, 0 for none
+	private volatile DisplayListener displayListener; // Told of every image shown, null if none
+
+	/**
+	 * Size, format and priority of the images of an update request.
+	 */
+	private static final class ImageSpec {
+		final int width, height; // size of the images in pixels
+		final int iconWidth, iconHeight; // size of the images on the screen
+		final String format; // MIME type of the images whose first layer is opaque
+		final ConcurrencyLimiter.Priority priority; // priority of the requests of the images
+
+		ImageSpec(int width, int height, int iconWidth, int iconHeight, String format,
+				ConcurrencyLimiter.Priority priority) {
+			this.width = width;
+			this.height = height;
+			this.iconWidth = iconWidth;
+			this.iconHeight = iconHeight;
+			this.format = format;
+			this.priority = priority;
+		}
+
+		/**
+		 * Returns the spec of an interim image at half the resolution, shown at
+		 * the same size.
+		 */
+		ImageSpec half() {
+			return new ImageSpec(Math.max(1, width / 2), Math.max(1, height / 2), iconWidth, iconHeight, format,
+					priority);
+		}
+
+		/**
+		 * Returns the spec of the same size in another format.
+		 */
+		ImageSpec withFormat(String format) {
+			return new ImageSpec(width, height, iconWidth, iconHeight, format, priority);
+		}
+
+		/**
+		 * Returns the spec of the same images requested with another priority.
+		 */
+		ImageSpec withPriority(ConcurrencyLimiter.Priority priority) {
+			return new ImageSpec(width, height, iconWidth, iconHeight, format, priority);
+		}
+	}
+
+	/**
+	 * Shows an image at its size on the screen rather than its size in pixels,
+	 * so that HiDPI images are drawn at full resolution and interim images are
+	 * stretched to the size of the map.
+	 */
+	private static final class MapIcon implements Icon {
+		private final BufferedImage image;
+		private final int width, height;
+
+		MapIcon(BufferedImage image, int width, int height) {
+			this.image = image;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public void paintIcon(Component c, Graphics g, int x, int y) {
+			Graphics2D g2 = (Graphics2D) g.create();
+			try {
+				g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g2.drawImage(image, x, y, width, height, null);
+			} finally {
+				g2.dispose();
+			}
+		}
+
+		@Override
+		public int getIconWidth() {
+			return width;
+		}
+
+		@Override
+		public int getIconHeight() {
+			return height;
+		}
+	}
+
+	/**
+	 * Kinds of images shown for a request: a preview made of the last fetched
+	 * image, an interim image of half the resolution, the best cached image
+	 * shown after the deadline, and the fetched image.
+	 */
+	public enum Display {
+		PREVIEW, INTERIM, FALLBACK, FETCHED
+	}
+
+	/**
+	 * Listener of the images shown by a Mapper.
+	 */
+	public interface DisplayListener {
+		/**
+		 * Called on the EDT after an image has been shown.
+		 * @param requestId id of the request of the image, as returned by updateMap
+		 * @param kind kind of the image
+		 */
+		void displayed(int requestId, Display kind);
+	}
 
 	/**
 	 * Constructs a Mapper, with half-width xMax and half-height yMax, used to
@@ -42,47 +179,209 @@ public class Mapper {
 	 *            the frame)
 	 */
 	public Mapper(JLabel imgLabel, int xMax, int yMax) {
+		this(imgLabel, xMax, yMax, DEFAULT_ENDPOINT);
+	}
+
+	/**
+	 * Constructs a Mapper, with half-width xMax and half-height yMax, used to
+	 * update a map image in imgLabel with maps of the WMS service at 'endpoint'.
+	 * 
+	 * @param imgLabel
+	 *            JLabel of a map image that will be used
+	 * @param xMax
+	 *            half-width (distance between the centre and the horizontal ends of
+	 *            the frame)
+	 * @param yMax
+	 *            half-height (distance between the centre and the vertical ends of
+	 *            the frame)
+	 * @param endpoint
+	 *            URL of the WMS service without a query
+	 */
+	public Mapper(JLabel imgLabel, int xMax, int yMax, String endpoint) {
 		this.imgLabel = imgLabel;
+		this.client = new WmsClient(endpoint);
 		this.axisLimit = new int[] { xMax, yMax };
 
 		this.centre = new int[2];
 		this.ds = axisLimit.clone();
 		this.layers = "bluemarble,cities";
+		this.cache = new MapImageCache(64L << 20, 32L << 20);
+		this.scheduler = new MapScheduler(40);
+		this.interimPool = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "map-interim");
+			t.setDaemon(true);
+			return t;
+		});
+		this.metrics = new MapMetrics(cache, scheduler, client);
 		nextRequestId = Integer.MIN_VALUE;
 		mapId = Integer.MIN_VALUE;
+		fetchedId = Integer.MIN_VALUE;
 	}
 
 	public void setLayers(String layers) {
 		this.layers = layers;
 	}
+
+	/**
+	 * Returns the cache of fetched images and tiles.
+	 * @return the image cache
+	 */
+	public MapImageCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Returns the client of the WMS service.
+	 * @return the WMS client
+	 */
+	public WmsClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Keep the fetched images and capabilities in a persistent disk cache, so
+	 * that a restarted client can show its first views without fetching them.
+	 * @param disk the disk cache or null for none
+	 */
+	public void setDiskCache(MapDiskCache disk) {
+		this.disk = disk;
+		cache.setDiskCache(disk, client.getEndpoint(), imageTTL);
+	}
+
+	/**
+	 * Prefetch the views one button press away after each update, at most
+	 * 'threads' at once and 'maxViews' per update. A new update cancels the
+	 * prefetches still pending.
+	 * @param threads maximum number of views prefetched at once, 0 to disable prefetching
+	 * @param maxViews maximum number of views prefetched per update
+	 */
+	public void setPrefetch(int threads, int maxViews) {
+		if (prefetcher != null)
+			prefetcher.cancel();
+		prefetcher = threads > 0 ? new MapPrefetcher(threads, maxViews) : null;
+	}
+
+	/**
+	 * Adapt the images to the network: views whose first layer is one of
+	 * 'opaqueLayers' are fetched as JPEG while the bandwidth is below
+	 * 'jpegBandwidth', and while an image of half the resolution is estimated
+	 * to arrive 'interimMillis' earlier than the full one, it is fetched
+	 * alongside the full one and shown first. Both follow the throughput
+	 * measured by the client, so the full quality returns when the network
+	 * allows it.
+	 * @param opaqueLayers layers without transparent areas
+	 * @param jpegBandwidth bytes per second below which JPEG is used, 0 for never
+	 * @param interimMillis time in milliseconds an interim image must arrive earlier to be shown, 0 for never
+	 */
+	public void setAdaptiveQuality(Set<String> opaqueLayers, double jpegBandwidth, double interimMillis) {
+		this.opaqueLayers = Set.copyOf(opaqueLayers);
+		this.jpegBandwidth = jpegBandwidth;
+		this.interimMillis = interimMillis > 0 ? interimMillis : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Show the best cached image of a view, e.g. one of lower resolution, when
+	 * the view has not been shown 'deadline' milliseconds after its update,
+	 * until the fetched image arrives. The fetch itself is bounded by the
+	 * timeout of the client and can be hedged with getClient().setHedging.
+	 * @param deadline time in milliseconds from an update to the fallback, 0 for none
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Switch between fetching the whole view as one image and composing it out of
+	 * tiles fetched in parallel, so that panning only fetches the newly exposed
+	 * tiles.
+	 * @param tileMode true to compose the view out of tiles
+	 */
+	public void setTileMode(boolean tileMode) {
+		if (tileMode && tiler == null)
+			tiler = new MapTiler(client, axisLimit[0], axisLimit[1], 4, cache);
+		else if (!tileMode)
+			tiler = null;
+	}
 	
+	/**
+	 * Switch between fetching all layers in one image and fetching and caching
+	 * every layer on its own, with a transparent background, and compositing
+	 * them locally, so that toggling a layer fetches at most that layer.
+	 * @param layerMode true to fetch every layer on its own
+	 */
+	public void setLayerMode(boolean layerMode) {
+		if (layerMode && layerPool == null) {
+			layerPool = Executors.newFixedThreadPool(4, r -> {
+				Thread t = new Thread(r, "map-layer");
+				t.setDaemon(true);
+				return t;
+			});
+		} else if (!layerMode && layerPool != null) {
+			layerPool.shutdown();
+			layerPool = null;
+		}
+	}
+
 	/**
 	 * Returns a list of all available map layers.
 	 * @return a list of all available map layers.
 	 * @throws Exception
 	 */
 	public ArrayList<Tuple<String, String>> fetchLayers() throws Exception {
-		ArrayList<Tuple<String, String>> layerList = new ArrayList<>();
-
-		// Make a GetCapabilities request.
-		URL getCapabilitiesURL = new URL(xmlURL);
-
-		// Build an XML document from the response.
-		DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-		Document doc = docBuilder.parse(getCapabilitiesURL.openStream());
-
-		// Find all the possible layers from the document.
-		XPath xPath = XPathFactory.newInstance().newXPath();
-		NodeList nodeList = (NodeList) xPath.evaluate("/WMT_MS_Capabilities/Capability/Layer/Layer", doc,
-				XPathConstants.NODESET);
+		try {
+			return fetchLayersAsync().get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
 
-		// Go through every layer, get the name and title, and add it to the layer list.
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			NodeList layer = (NodeList) xPath.evaluate("Name|Title", nodeList.item(i), XPathConstants.NODESET);
-			layerList.add(new Tuple<String, String>(layer.item(0).getTextContent(), layer.item(1).getTextContent()));
+	/**
+	 * Fetch the list of all available map layers. Capabilities cached on disk are
+	 * revalidated with a conditional request and used as they are if they have
+	 * not changed or if the server cannot be reached.
+	 * @return the future of the list of all available map layers
+	 */
+	public CompletableFuture<ArrayList<Tuple<String, String>>> fetchLayersAsync() {
+		MapDiskCache disk = this.disk;
+		String xmlURL = client.getCapabilitiesURL();
+		byte[] cached = disk == null ? null : disk.get(xmlURL);
+		String[] validators = new String[2]; // ETag and Last-Modified of the cached capabilities
+		if (cached != null) {
+			byte[] stored = disk.get(xmlURL + " validators");
+			if (stored != null) {
+				String[] lines = new String(stored, StandardCharsets.UTF_8).split("\n", -1);
+				validators[0] = lines[0].isEmpty() ? null : lines[0];
+				validators[1] = lines.length < 2 || lines[1].isEmpty() ? null : lines[1];
+			}
 		}
 
-		return layerList;
+		return client.revalidateCapabilities(validators[0], validators[1]).handle((response, e) -> {
+			if (e != null) {
+				if (cached == null)
+					throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+				System.err.println("Using cached capabilities: " + e);
+				return cached;
+			}
+			if (response.statusCode() == 304) {
+				// Still valid: keep them for another period.
+				disk.put(xmlURL, cached, capabilitiesTTL);
+				return cached;
+			}
+			if (disk != null) {
+				disk.put(xmlURL, response.body(), capabilitiesTTL);
+				String etag = response.headers().firstValue("ETag").orElse("");
+				String lastModified = response.headers().firstValue("Last-Modified").orElse("");
+				disk.put(xmlURL + " validators", (etag + "\n" + lastModified).getBytes(StandardCharsets.UTF_8),
+						capabilitiesTTL);
+			}
+			return response.body();
+		}).thenApply(capabilities -> {
+			try {
+				return CapabilitiesParser.parseLayers(new ByteArrayInputStream(capabilities));
+			} catch (XMLStreamException e) {
+				throw new CompletionException(e);
+			}
+		});
 	}
 
 	/**
@@ -92,6 +391,33 @@ public class Mapper {
 	 * @param axis axis along which the movement is done
 	 */
 	public void move(double factor, int axis) {
+		int[][] view = moved(centre, ds, factor, axis);
+		centre = view[0];
+		ds = view[1];
+	}
+
+	/**
+	 * Zoom in or out on the image. Zooming in occurs if 'factor' < 1, and zooming out of 'factor' > 1.
+	 * @param factor factor = (new height or width)/(old height or width)
+	 */
+	public void zoom(double factor) {
+		int[][] view = zoomed(centre, ds, factor);
+		centre = view[0];
+		ds = view[1];
+	}
+
+	/**
+	 * Returns the view {centre, ds} after a move of the view 'centre', 'ds' along an 'axis'
+	 * by a 'factor'. The arguments are not changed.
+	 * @param centre centre of the view
+	 * @param ds half-width and half-height of the view
+	 * @param factor a proportion of the current width or height
+	 * @param axis axis along which the movement is done
+	 * @return the moved view
+	 */
+	private int[][] moved(int[] centre, int[] ds, double factor, int axis) {
+		centre = centre.clone();
+
 		// Calculate the amount moved.
 		int shift = (int) (Math.signum(factor) * Math.max(1, Math.abs(2 * ds[axis] * factor)));
 
@@ -105,47 +431,94 @@ public class Mapper {
 		else
 			centre[axis] += shift;
 
-		System.out.println(String.format("%d, %d", centre[axis], ds[axis]));
+		return new int[][] { centre, ds.clone() };
 	}
 
 	/**
-	 * Zoom in or out on the image. Zooming in occurs if 'factor' < 1, and zooming out of 'factor' > 1.
+	 * Returns the view {centre, ds} after zooming the view 'centre', 'ds' by a 'factor'.
+	 * The arguments are not changed.
+	 * @param centre centre of the view
+	 * @param ds half-width and half-height of the view
 	 * @param factor factor = (new height or width)/(old height or width)
+	 * @return the zoomed view
 	 */
-	public void zoom(double factor) {
+	private int[][] zoomed(int[] centre, int[] ds, double factor) {
+		centre = centre.clone();
+
 		// Calculate the new half-height.
 		int newdy = ds[1];
 		newdy *= factor;
 
 		// If the new half-height is larger than the y-limit, reset the box.
 		if (axisLimit[1] < newdy)
-			reset();
-		// Otherwise zoom out.
-		else {
-			// If the new dy is less than one, make it one to avoid a 0-height image.
-			newdy = newdy < 1 ? 1 : newdy;
+			return new int[][] { new int[2], axisLimit.clone() };
 
-			// If the new dy is the same as the old one while zooming out, increment it.
-			newdy += (newdy == ds[1] && 1 < factor) ? 1 : 0;
+		// If the new dy is less than one, make it one to avoid a 0-height image.
+		newdy = newdy < 1 ? 1 : newdy;
 
-			// Calculate the new half-width.
-			int newdx = (int) (newdy * (double) axisLimit[0] / axisLimit[1]);
+		// If the new dy is the same as the old one while zooming out, increment it.
+		newdy += (newdy == ds[1] && 1 < factor) ? 1 : 0;
 
-			// If the new box exceeds the x-limits, move it horizontally.
-			if (axisLimit[0] < centre[0] + newdx)
-				centre[0] = axisLimit[0] - newdx;
-			else if (centre[0] - newdx < -axisLimit[0])
-				centre[0] = -axisLimit[0] + newdx;
+		// Calculate the new half-width.
+		int newdx = (int) (newdy * (double) axisLimit[0] / axisLimit[1]);
 
-			// If the new box exceeds the y-limits, move it vertically.
-			if (axisLimit[1] < centre[1] + newdy)
-				centre[1] = axisLimit[1] - newdy;
-			else if (centre[1] - newdy < -axisLimit[1])
-				centre[1] = -axisLimit[1] + newdy;
+		// If the new box exceeds the x-limits, move it horizontally.
+		if (axisLimit[0] < centre[0] + newdx)
+			centre[0] = axisLimit[0] - newdx;
+		else if (centre[0] - newdx < -axisLimit[0])
+			centre[0] = -axisLimit[0] + newdx;
 
-			// Save the new size.
-			ds = new int[] { newdx, newdy };
+		// If the new box exceeds the y-limits, move it vertically.
+		if (axisLimit[1] < centre[1] + newdy)
+			centre[1] = axisLimit[1] - newdy;
+		else if (centre[1] - newdy < -axisLimit[1])
+			centre[1] = -axisLimit[1] + newdy;
+
+		return new int[][] { centre, new int[] { newdx, newdy } };
+	}
+
+	/**
+	 * Returns the views one button press away from the view 'centre', 'ds', most
+	 * likely first: the four moves, zooming in and out and the reset view. Views
+	 * equal to the given one or to an earlier one are left out.
+	 * @param centre centre of the view
+	 * @param ds half-width and half-height of the view
+	 * @return the neighbouring views as {centre, ds} pairs
+	 */
+	private List<int[][]> neighbours(int[] centre, int[] ds) {
+		List<int[][]> views = new ArrayList<>();
+		views.add(new int[][] { centre, ds });
+		for (int[][] view : Arrays.asList(moved(centre, ds, -MOVE_STEP, 0), moved(centre, ds, MOVE_STEP, 0),
+				moved(centre, ds, MOVE_STEP, 1), moved(centre, ds, -MOVE_STEP, 1), zoomed(centre, ds, ZOOM_IN),
+				zoomed(centre, ds, ZOOM_OUT), new int[][] { new int[2], axisLimit.clone() })) {
+			boolean seen = false;
+			for (int[][] other : views)
+				seen |= Arrays.deepEquals(view, other);
+			if (!seen)
+				views.add(view);
 		}
+		return views.subList(1, views.size());
+	}
+
+	/**
+	 * Returns the keys of the tiles tile mode fetches for the views within
+	 * 'region' at the zoom levels 'minLevel' to 'maxLevel', e.g. to seed a
+	 * cache. A zoom level is the number of zoom-ins from the whole map, and the
+	 * views have the default size of the map image.
+	 * @param region {minX, minY, maxX, maxY} of the region
+	 * @param minLevel first zoom level
+	 * @param maxLevel last zoom level
+	 * @return the keys of the tiles, level by level
+	 */
+	public List<MapKey> tileKeys(double[] region, int minLevel, int maxLevel) {
+		List<MapKey> keys = new ArrayList<>();
+		int[] ds = axisLimit.clone();
+		for (int level = 0; level <= maxLevel; level++) {
+			if (level >= minLevel)
+				keys.addAll(MapTiler.tileKeys(axisLimit, ds, width, height, region, layers));
+			ds = zoomed(new int[2], ds, ZOOM_IN)[1];
+		}
+		return keys;
 	}
 
 	/**
@@ -165,38 +538,444 @@ public class Mapper {
 	}
 
 	/**
-	 * Update map image if requestId >= mapId.
+	 * Update map image if requestId >= mapId, unless it is not the fetched
+	 * image of a request whose fetched image has been shown. Only fetched
+	 * images are kept for the previews.
 	 * @param image
+	 * @param view {centre, ds} of the image
+	 * @param spec spec of the image
 	 * @param requestId
+	 * @param kind kind of the image
+	 * @param trace trace of a fetched image, or null for the other kinds
+	 * @return true if the image was updated
 	 */
-	synchronized private void updateImage(ImageIcon image, int requestId) {
-		System.out.println(String.format("requestId: %d, currentMapId: %d", requestId, mapId));
-		if ((mapId == Integer.MAX_VALUE && requestId == Integer.MIN_VALUE) || (requestId >= mapId)) {
-			imgLabel.setIcon(image);
+	synchronized private boolean updateImage(BufferedImage image, int[][] view, ImageSpec spec, int requestId,
+			Display kind, MapTrace trace) {
+		boolean accepted = (mapId == Integer.MAX_VALUE && requestId == Integer.MIN_VALUE) || (requestId >= mapId);
+		if (accepted && (kind == Display.FETCHED || requestId != fetchedId)) {
+			// Only swap the decoded image on the EDT; the swaps keep the order of
+			// the accepted requests.
+			Icon icon = new MapIcon(image, spec.iconWidth, spec.iconHeight);
+			DisplayListener listener = displayListener;
+			long queued = System.nanoTime();
+			SwingUtilities.invokeLater(() -> {
+				imgLabel.setIcon(icon);
+				if (trace != null) {
+					trace.add(MapTrace.Stage.PAINT, System.nanoTime() - queued);
+					trace.end();
+					metrics.shown(trace);
+				}
+				if (listener != null)
+					listener.displayed(requestId, kind);
+			});
 			mapId = requestId;
+			if (kind == Display.FETCHED) {
+				fetchedId = requestId;
+				shownImage = image;
+				shownView = view;
+			}
+			return true;
 		}
+		if (trace != null) {
+			trace.end();
+			metrics.discarded(trace);
+		}
+		return false;
 	}
-	
+
+	/**
+	 * Returns the metrics of the map updates.
+	 * @return the metrics
+	 */
+	public MapMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Tell 'listener' of every image shown.
+	 * @param listener the listener or null for none
+	 */
+	public void setDisplayListener(DisplayListener listener) {
+		this.displayListener = listener;
+	}
+
+	/**
+	 * Show a preview of a view until it is fetched or not.
+	 * @param preview true to show a preview of every update while it is fetched
+	 */
+	public void setPreview(boolean preview) {
+		this.preview = preview;
+	}
+
+	/**
+	 * Render a preview of the view 'centre', 'ds' out of the last fetched image
+	 * shown, shifted and scaled to the view, over the whole map if it is cached
+	 * decoded so that areas the last image does not cover are not left empty.
+	 * Nothing is decoded, as the preview is rendered on the event dispatch
+	 * thread.
+	 * @param centre centre of the view
+	 * @param ds half-width and half-height of the view
+	 * @param layers comma-separated list of layers
+	 * @param spec spec of the preview
+	 * @return the preview or null if there is no image to render it from
+	 */
+	private BufferedImage renderPreview(int[] centre, int[] ds, String layers, ImageSpec spec) {
+		BufferedImage shown;
+		int[][] shownView;
+		synchronized (this) {
+			shown = this.shownImage;
+			shownView = this.shownView;
+		}
+		if (shown == null)
+			return null;
+
+		BufferedImage preview = ImageDecoder.createCompatible(spec.width, spec.height);
+		Graphics2D g = preview.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+			MapKey world = viewKey(new int[2], axisLimit, layers, spec);
+			if (!Arrays.equals(shownView[1], axisLimit))
+				drawView(g, cache.getDecoded(world), new int[2], axisLimit, centre, ds, spec);
+			drawView(g, shown, shownView[0], shownView[1], centre, ds, spec);
+		} finally {
+			g.dispose();
+		}
+		return preview;
+	}
+
+	/**
+	 * Draw 'image' of the view 'from', 'fromDs' where it is in the view 'to', 'toDs'
+	 * of an image of 'spec'.
+	 */
+	private void drawView(Graphics2D g, BufferedImage image, int[] from, int[] fromDs, int[] to, int[] toDs,
+			ImageSpec spec) {
+		if (image == null)
+			return;
+		double sx = spec.width / (2.0 * toDs[0]), sy = spec.height / (2.0 * toDs[1]);
+		int x0 = (int) Math.round((from[0] - fromDs[0] - (to[0] - toDs[0])) * sx);
+		int x1 = (int) Math.round((from[0] + fromDs[0] - (to[0] - toDs[0])) * sx);
+		int y0 = (int) Math.round((to[1] + toDs[1] - (from[1] + fromDs[1])) * sy);
+		int y1 = (int) Math.round((to[1] + toDs[1] - (from[1] - fromDs[1])) * sy);
+		g.drawImage(image, x0, y0, x1, y1, 0, 0, image.getWidth(), image.getHeight(), null);
+	}
+
+	/**
+	 * Render the view 'centre', 'ds' from the cache or the server. In layer mode
+	 * every layer is fetched on its own and the layers are composited in order,
+	 * the first at the bottom.
+	 * @param centre centre of the view
+	 * @param ds half-width and half-height of the view
+	 * @param layers comma-separated list of layers
+	 * @param tiler tile renderer, or null to fetch the view as one image
+	 * @param spec size and format of the image
+	 * @return the image or null if the response was not an image
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private BufferedImage renderView(int[] centre, int[] ds, String layers, MapTiler tiler, ImageSpec spec)
+			throws IOException, InterruptedException {
+		ExecutorService layerPool = this.layerPool;
+		if (layerPool == null || layers.indexOf(',') < 0)
+			return renderLayers(centre, ds, layers, tiler, spec);
+
+		// Fetch the layers in parallel.
+		List<Future<BufferedImage>> fetches = new ArrayList<>();
+		for (String layer : layers.split(","))
+			fetches.add(layerPool.submit(MapTrace.wrap(() -> renderLayers(centre, ds, layer, tiler, spec))));
+
+		BufferedImage image = ImageDecoder.createCompatible(spec.width, spec.height);
+		Graphics2D g = image.createGraphics();
+		try {
+			for (Future<BufferedImage> fetch : fetches) {
+				BufferedImage layer;
+				try {
+					layer = fetch.get();
+				} catch (InterruptedException e) {
+					for (Future<BufferedImage> other : fetches)
+						other.cancel(true);
+					throw e;
+				} catch (ExecutionException e) {
+					// Leave out a layer that failed.
+					if (!ConcurrencyLimiter.isShed(e))
+						e.getCause().printStackTrace();
+					continue;
+				}
+				if (layer != null)
+					g.drawImage(layer, 0, 0, spec.width, spec.height, null);
+			}
+		} finally {
+			g.dispose();
+		}
+		return image;
+	}
+
+	/**
+	 * Render the view 'centre', 'ds' of 'layers' as one image or out of tiles.
+	 * Tiles are always PNG, as they are shared by every view.
+	 */
+	private BufferedImage renderLayers(int[] centre, int[] ds, String layers, MapTiler tiler, ImageSpec spec)
+			throws IOException, InterruptedException {
+		if (tiler != null)
+			return tiler.render(centre, ds, spec.width, spec.height, layers, spec.priority);
+		return loadImage(viewKey(centre, ds, layers, spec), spec.priority);
+	}
+
+	/**
+	 * Returns whether the view 'centre', 'ds' of 'layers' is cached in memory as a
+	 * whole, or layer by layer in layer mode. Views composed of tiles are never
+	 * considered cached.
+	 */
+	private boolean isCached(int[] centre, int[] ds, String layers, MapTiler tiler, ImageSpec spec) {
+		if (tiler != null)
+			return false;
+		if (layerPool == null)
+			return cache.contains(viewKey(centre, ds, layers, spec));
+		for (String layer : layers.split(","))
+			if (!cache.contains(viewKey(centre, ds, layer, spec)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the key of the image of the view 'centre', 'ds' of 'layers'. Only
+	 * images with an opaque first layer take the format of 'spec', the others
+	 * need the transparency of PNG.
+	 */
+	private MapKey viewKey(int[] centre, int[] ds, String layers, ImageSpec spec) {
+		int comma = layers.indexOf(',');
+		String first = comma < 0 ? layers : layers.substring(0, comma);
+		String format = opaqueLayers.contains(first) ? spec.format : "image/png";
+		return new MapKey(centre[0] - ds[0], centre[1] - ds[1], centre[0] + ds[0], centre[1] + ds[1], layers,
+				spec.width, spec.height, format);
+	}
+
+	/**
+	 * Returns the size and format of the images of the next update: the default
+	 * size fitted into the label, in pixels of the screen of the label, and JPEG
+	 * for opaque views while the bandwidth is low.
+	 */
+	private ImageSpec imageSpec() {
+		double scale = 1;
+		GraphicsConfiguration gc = imgLabel.getGraphicsConfiguration();
+		if (gc != null)
+			scale = gc.getDefaultTransform().getScaleX();
+
+		double fit = 1;
+		if (imgLabel.getWidth() > 0 && imgLabel.getHeight() > 0)
+			fit = Math.min((double) imgLabel.getWidth() / width, (double) imgLabel.getHeight() / height);
+		int iconWidth = Math.max(1, (int) Math.round(width * fit));
+		int iconHeight = Math.max(1, (int) Math.round(height * fit));
+		double pixels = Math.min(scale, (double) maxPixels / iconWidth);
+
+		double bandwidth = client.getThroughput().getBytesPerSecond();
+		String format = bandwidth < jpegBandwidth ? "image/jpeg" : "image/png";
+		return new ImageSpec(Math.max(1, (int) Math.round(iconWidth * pixels)),
+				Math.max(1, (int) Math.round(iconHeight * pixels)), iconWidth, iconHeight, format,
+				ConcurrencyLimiter.Priority.VISIBLE);
+	}
+
+	/**
+	 * Returns whether an interim image of half the resolution of the view
+	 * 'centre', 'ds' of 'layers' is estimated to arrive so much earlier than
+	 * the full one that it should be shown first. Both are requested at once,
+	 * so the latency of the server delays both alike and only the download
+	 * counts. Unknown estimates are not slow.
+	 */
+	private boolean isSlow(int[] centre, int[] ds, String layers, ImageSpec spec) {
+		String format = viewKey(centre, ds, layers, spec).getFormat();
+		ThroughputEstimator throughput = client.getThroughput();
+		ImageSpec half = spec.half();
+		double saved = throughput.estimateMillis(format, (long) spec.width * spec.height)
+				- throughput.estimateMillis(format, (long) half.width * half.height);
+		return saved > interimMillis;
+	}
+
+	/**
+	 * Returns the best image of the view 'centre', 'ds' of 'layers' cached in
+	 * memory in the size of 'spec' or half of it, in either format, or null if
+	 * there is none. Only views fetched as one image are looked up.
+	 */
+	private BufferedImage bestCached(int[] centre, int[] ds, String layers, MapTiler tiler, ImageSpec spec) {
+		if (tiler != null || layerPool != null)
+			return null;
+		for (ImageSpec candidate : Arrays.asList(spec.withFormat("image/png"), spec.withFormat("image/jpeg"),
+				spec.half().withFormat("image/png"), spec.half().withFormat("image/jpeg"))) {
+			MapKey key = viewKey(centre, ds, layers, candidate);
+			BufferedImage image = cache.contains(key) ? cache.get(key) : null;
+			if (image != null)
+				return image;
+		}
+		return null;
+	}
+
+	/**
+	 * Show the best cached image of the view of a request that missed its
+	 * deadline, or a preview if previews are not shown anyway.
+	 */
+	private void showFallback(int[] centre, int[] ds, String layers, MapTiler tiler, ImageSpec spec, int requestId,
+			MapTrace trace) {
+		metrics.deadlineMissed(trace);
+		BufferedImage image = bestCached(centre, ds, layers, tiler, spec);
+		if (image != null)
+			updateImage(image, new int[][] { centre, ds }, spec, requestId, Display.FALLBACK, null);
+		else if (!preview && (image = renderPreview(centre, ds, layers, spec)) != null)
+			updateImage(image, new int[][] { centre, ds }, spec, requestId, Display.FALLBACK, null);
+	}
+
+	/**
+	 * Prefetch the views one button press away from the view 'centre', 'ds' that
+	 * are not cached yet.
+	 */
+	private void prefetchNeighbours(MapPrefetcher prefetcher, int[] centre, int[] ds, String layers,
+			MapTiler tiler, ImageSpec spec) {
+		Map<MapKey, Callable<?>> views = new LinkedHashMap<>();
+		ImageSpec prefetch = spec.withPriority(ConcurrencyLimiter.Priority.PREFETCH);
+		for (int[][] view : neighbours(centre, ds)) {
+			if (isCached(view[0], view[1], layers, tiler, prefetch))
+				continue;
+			views.put(viewKey(view[0], view[1], layers, prefetch),
+					() -> renderView(view[0], view[1], layers, tiler, prefetch));
+		}
+		prefetcher.prefetch(views);
+	}
+
+	/**
+	 * Get the image of 'key' from the cache, or fetch and cache it.
+	 * @param key key of the image
+	 * @param priority priority of the request
+	 * @return the image or null if the response was not an image
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private BufferedImage loadImage(MapKey key, ConcurrencyLimiter.Priority priority)
+			throws IOException, InterruptedException {
+		BufferedImage image = cache.get(key);
+		if (image != null)
+			return image;
+
+		byte[] bytes = client.getMap(key, priority);
+		image = ImageDecoder.decode(bytes);
+		if (image != null)
+			cache.put(key, bytes, image);
+		else
+			System.err.println("The server did not return an image: " + new String(bytes));
+		return image;
+	}
+
 	/**
-	 * Update the map with the latest settings.
+	 * Update the map with the latest settings. Bursts of updates coalesce into
+	 * the last one, and an update aborts the one still in flight. Meanwhile a
+	 * preview made of the last image is shown, followed by an image of half the
+	 * resolution if the full one is estimated to take long, and by the best
+	 * cached image if the update misses its deadline.
 	 * @param waitUpdate
+	 * @return id of the request, as given to the display listener
 	 * @throws Exception
 	 */
-	public void updateMap(boolean waitUpdate) throws Exception {
+	public int updateMap(boolean waitUpdate) throws Exception {
 		int requestId = getNextRequestId();
-		Thread t = new Thread(() -> {
+
+		// Take the settings of this request before the next one changes them.
+		int[] centre = this.centre.clone(), ds = this.ds.clone();
+		String layers = this.layers;
+		MapTiler tiler = this.tiler;
+		MapPrefetcher prefetcher = this.prefetcher;
+		ImageSpec spec = imageSpec();
+
+		// The user has moved on, so the prefetches of the previous view are no
+		// longer the most likely ones, except the one of this view.
+		Future<?> joined = prefetcher != null ? prefetcher.cancelExcept(viewKey(centre, ds, layers, spec)) : null;
+
+		// Show the last image moved to the new view at once, unless the view is
+		// cached and about to be shown anyway.
+		boolean cached = isCached(centre, ds, layers, tiler, spec);
+		if (preview && !cached) {
+			BufferedImage preview = renderPreview(centre, ds, layers, spec);
+			if (preview != null)
+				updateImage(preview, new int[][] { centre, ds }, spec, requestId, Display.PREVIEW, null);
+		}
+
+		MapTrace trace = new MapTrace(requestId);
+		metrics.requested();
+		Future<?> update = scheduler.submit(() -> {
+			trace.add(MapTrace.Stage.QUEUE, System.nanoTime() - trace.getCreated());
+			MapTrace.set(trace);
+
+			// Past the deadline fall back to the best cached image meanwhile.
+			long deadline = this.deadline;
+			CompletableFuture<Void> fallback = null;
+			Future<?> interim = null;
+			if (deadline > 0 && !cached) {
+				long delay = trace.getCreated() + deadline * 1_000_000 - System.nanoTime();
+				fallback = CompletableFuture.runAsync(
+						() -> showFallback(centre, ds, layers, tiler, spec, requestId, trace),
+						CompletableFuture.delayedExecutor(Math.max(0, delay), TimeUnit.NANOSECONDS));
+			}
 			try {
-				ImageIcon image = new ImageIcon(new URL(String.format(mapURL, centre[0] - ds[0], centre[1] - ds[1],
-						centre[0] + ds[0], centre[1] + ds[1], layers)));
-				updateImage(image, requestId);
+				// On a slow network fetch an image of half the resolution alongside
+				// the full one and show it first. Tiles keep their size, so tile
+				// mode has no interim images, and a view being prefetched is
+				// already on its way.
+				if (tiler == null && !cached && joined == null && isSlow(centre, ds, layers, spec)) {
+					ImageSpec half = spec.half();
+					interim = interimPool.submit(() -> {
+						BufferedImage image = renderView(centre, ds, layers, null, half);
+						if (image != null)
+							updateImage(image, new int[][] { centre, ds }, half, requestId, Display.INTERIM, null);
+						return null;
+					});
+				}
 
-			} catch (MalformedURLException e) {
-				e.printStackTrace();
+				long start = System.nanoTime();
+				if (joined != null) {
+					// The view is being prefetched, so wait for it to be cached
+					// instead of fetching it again.
+					try {
+						joined.get();
+					} catch (CancellationException | ExecutionException e) {
+						// Fetched below.
+					}
+				}
+				BufferedImage image = renderView(centre, ds, layers, tiler, spec);
+				trace.add(MapTrace.Stage.RENDER, System.nanoTime() - start);
+
+				// The full image won, so the interim one is no longer needed.
+				if (interim != null)
+					interim.cancel(true);
+
+				if (image == null) {
+					trace.end();
+					metrics.failed(trace, new IOException("No image"));
+				} else if (updateImage(image, new int[][] { centre, ds }, spec, requestId, Display.FETCHED, trace)
+						&& prefetcher != null) {
+					prefetchNeighbours(prefetcher, centre, ds, layers, tiler, spec);
+				}
+
+			} catch (InterruptedException e) {
+				// Superseded by a newer request.
+			} catch (IOException e) {
+				if (!Thread.currentThread().isInterrupted()) {
+					e.printStackTrace();
+					trace.end();
+					metrics.failed(trace, e);
+				}
+			} finally {
+				if (fallback != null)
+					fallback.cancel(false);
+				if (interim != null)
+					interim.cancel(true);
+				MapTrace.set(null);
 			}
 		});
-		t.start();
-		if (waitUpdate)
-			t.join();
+		if (waitUpdate) {
+			try {
+				update.get();
+			} catch (CancellationException e) {
+				// Superseded by a newer request.
+			}
+		}
+		return requestId;
 	}
 
 }
@@ -0,0 +1,158 @@
+/**
+ * A fixed-size ring of per-interval buckets, each holding the sum and the
+ * amount of the values recorded during one interval. Recording a value never
+ * allocates and a query only visits the buckets inside the requested window.
+ */
+public class SlidingWindow
+{
+	private final long interval;		// length of a bucket in ms.
+	private final long[] epochs;		// interval number of each bucket.
+	private final long[] sums;			// sum of each bucket.
+	private final int[] counts;			// amount of numbers in each bucket.
+	
+	/**
+	 * Creates a window of 'buckets' buckets of 'interval' ms each.
+	 * @param buckets the amount of buckets in the ring.
+	 * @param interval the length of a bucket in ms.
+	 */
+	public SlidingWindow(int buckets, long interval)
+	{
+		this.interval = interval;
+		this.epochs = new long[buckets];
+		this.sums = new long[buckets];
+		this.counts = new int[buckets];
+		
+		// Mark every bucket as unused.
+		for (int i = 0; i < buckets; i++)
+			epochs[i] = -1;
+	}
+	
+	/**
+	 * Records a single value in the bucket of the current interval.
+	 * @param value the value to record.
+	 */
+	public void add(int value)
+	{
+		add(value, 1);
+	}
+	
+	/**
+	 * Records a partial sum of 'count' values in the bucket of the current
+	 * interval.
+	 * @param sum the sum of the values.
+	 * @param count the amount of values.
+	 */
+	public synchronized void add(long sum, int count)
+	{
+		long epoch = System.currentTimeMillis() / interval;
+		int i = (int) (epoch % epochs.length);
+		
+		// Recycle the bucket if it belongs to an earlier lap of the ring.
+		if (epochs[i] != epoch)
+		{
+			epochs[i] = epoch;
+			sums[i] = 0;
+			counts[i] = 0;
+		}
+		
+		sums[i] += sum;
+		counts[i] += count;
+	}
+	
+	/**
+	 * Returns the sum of the values recorded during the last 'seconds' seconds.
+	 * @param seconds the length of the window in seconds.
+	 * @return the sum of the values recorded within the window.
+	 */
+	public synchronized long sum(int seconds)
+	{
+		long epoch = System.currentTimeMillis() / interval;
+		long sum = 0;
+		
+		for (int k = 0; k < span(seconds); k++)
+		{
+			int i = (int) ((epoch - k) % epochs.length);
+			
+			if (epochs[i] == epoch - k)
+				sum += sums[i];
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * Returns the amount of values recorded during the last 'seconds' seconds.
+	 * @param seconds the length of the window in seconds.
+	 * @return the amount of values recorded within the window.
+	 */
+	public synchronized int count(int seconds)
+	{
+		long epoch = System.currentTimeMillis() / interval;
+		int count = 0;
+		
+		for (int k = 0; k < span(seconds); k++)
+		{
+			int i = (int) ((epoch - k) % epochs.length);
+			
+			if (epochs[i] == epoch - k)
+				count += counts[i];
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Returns the average amount of values recorded per second during the
+	 * last 'seconds' seconds.
+	 * @param seconds the length of the window in seconds.
+	 * @return the amount of values per second within the window.
+	 */
+	public int rate(int seconds)
+	{
+		return rate(count(seconds), seconds, epochs.length, interval);
+	}
+	
+	/**
+	 * Returns the average amount of values per second of 'count' values
+	 * recorded during the last 'seconds' seconds in rings of 'buckets'
+	 * buckets of 'interval' ms. A ring only covers its last 'buckets'
+	 * intervals, so a longer window is divided by the time the ring covers.
+	 * @param count the amount of values within the window.
+	 * @param seconds the length of the window in seconds.
+	 * @param buckets the amount of buckets in the rings.
+	 * @param interval the length of a bucket in ms.
+	 * @return the amount of values per second within the window.
+	 */
+	public static int rate(long count, int seconds, int buckets, long interval)
+	{
+		long covered = span(seconds, buckets, interval) * interval;
+		
+		return covered == 0 ? 0 : (int) (count * 1000 / covered);
+	}
+	
+	/**
+	 * Returns the amount of buckets covering 'seconds' seconds, limited to
+	 * the length of the ring.
+	 * @param seconds the length of the window in seconds.
+	 * @return the amount of buckets within the window.
+	 */
+	private int span(int seconds)
+	{
+		return span(seconds, epochs.length, interval);
+	}
+	
+	/**
+	 * Returns the amount of buckets of 'interval' ms covering 'seconds'
+	 * seconds, limited to 'buckets'.
+	 * @param seconds the length of the window in seconds.
+	 * @param buckets the amount of buckets in the ring.
+	 * @param interval the length of a bucket in ms.
+	 * @return the amount of buckets within the window.
+	 */
+	private static int span(int seconds, int buckets, long interval)
+	{
+		long span = (seconds * 1000L + interval - 1) / interval;
+		
+		return (int) Math.max(0, Math.min(span, buckets));
+	}
+}
@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class SumNotifier implements Runnable
+{
+	private final int timeoutConnect = 5000;	// timeout in ms.
+	
+	final private ServerSocket serverSocket;	// local server socket.
+	final private AdderHandler handler;			// source of the totals.
+	final private int interval;					// minimum interval in ms.
+	private Socket socket;						// local socket.
+	
+	/**
+	 * Creates a notifier that streams the changes of the totals of 'handler'
+	 * to a subscriber at most once every 'interval' ms.
+	 * @param handler the adder handler whose totals are streamed.
+	 * @param interval the minimum interval between two updates in ms.
+	 * @throws IOException
+	 */
+	public SumNotifier(AdderHandler handler, int interval) throws IOException
+	{
+		this.serverSocket = new ServerSocket(0);
+		this.handler = handler;
+		this.interval = Math.max(interval, 10);
+		
+		System.out.println(String.format("A new notifier created at port"
+				+ " %d.", serverSocket.getLocalPort()));
+	}
+	
+	/**
+	 * Returns the port at which the notifier is running.
+	 * @return the port at which the notifier is running.
+	 */
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * Runs the notifier. Waits for a subscriber and then, at most once every
+	 * interval, sends it the changes of the total sum and the total amount of
+	 * numbers since the previous update, followed by the current index of the
+	 * largest adder. Nothing is sent during an interval with no changes.
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			// Wait for the subscriber and then close the serverSocket.
+			serverSocket.setSoTimeout(timeoutConnect);
+			socket = serverSocket.accept();
+			serverSocket.close();
+			
+			ObjectOutputStream outStream = new ObjectOutputStream(socket.getOutputStream());
+			
+			// The totals last sent to the subscriber.
+			int sum = 0, numbers = 0, maxIndex = 0;
+			
+			while (!socket.isClosed())
+			{
+				int newSum = handler.totalSum();
+				int newNumbers = handler.totalNumbers();
+				int newMaxIndex = handler.maxSumIndex();
+				
+				// Coalesce every change within the interval into one update.
+				if (newSum != sum || newNumbers != numbers || newMaxIndex != maxIndex)
+				{
+					outStream.writeInt(newSum - sum);
+					outStream.writeInt(newNumbers - numbers);
+					outStream.writeInt(newMaxIndex);
+					outStream.flush();
+					
+					sum = newSum;
+					numbers = newNumbers;
+					maxIndex = newMaxIndex;
+				}
+				
+				Thread.sleep(interval);
+			}
+		}
+		catch (IOException | InterruptedException e)
+		{
+			System.out.println(String.format("The notifier at port %s has"
+					+ " stopped: %s", serverSocket.getLocalPort(), e.getMessage()));
+		}
+		
+		try
+		{
+			close();
+		}
+		catch (IOException e)
+		{
+			
+		}
+	}
+	
+	/**
+	 * Closes the sockets of the notifier.
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		if (socket != null && !socket.isClosed())
+			socket.close();
+		
+		if (serverSocket != null && !serverSocket.isClosed())
+			serverSocket.close();
+	}
+}
@@ -0,0 +1,81 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates how long a response takes from the responses seen so far, as the
+ * time to the response headers plus the body size over the bandwidth. The
+ * latency, the bandwidth and the bytes per pixel of each image format are
+ * exponentially weighted moving averages, so the estimates follow the link
+ * as it changes.
+ */
+public class ThroughputEstimator {
+	private static final double ALPHA = 0.3; // weight of a new sample
+	private static final long MIN_BODY = 16 << 10; // smallest body to measure the bandwidth with
+
+	private double latencyMillis = Double.NaN; // time to the response headers
+	private double bytesPerSecond = Double.NaN; // bandwidth of the bodies
+	private final Map<String, Double> bytesPerPixel = new HashMap<>(); // by image format
+
+	/**
+	 * Record a response.
+	 * @param ttfb time from the request to the response headers in nanoseconds
+	 * @param bytes size of the body in bytes
+	 * @param download time from the response headers to the end of the body in nanoseconds
+	 */
+	synchronized public void recordResponse(long ttfb, long bytes, long download) {
+		latencyMillis = average(latencyMillis, ttfb / 1e6);
+		if (bytes >= MIN_BODY && download > 0)
+			bytesPerSecond = average(bytesPerSecond, bytes * 1e9 / download);
+	}
+
+	/**
+	 * Record the size of an image.
+	 * @param format MIME type of the image
+	 * @param pixels number of pixels of the image
+	 * @param bytes size of the image in bytes
+	 */
+	synchronized public void recordImage(String format, long pixels, long bytes) {
+		if (pixels > 0)
+			bytesPerPixel.put(format, average(bytesPerPixel.getOrDefault(format, Double.NaN), (double) bytes / pixels));
+	}
+
+	/**
+	 * Returns the estimated bandwidth in bytes per second, or NaN if there are
+	 * no samples yet.
+	 * @return the bandwidth or NaN
+	 */
+	synchronized public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Returns the estimated time to the response headers in milliseconds, or
+	 * NaN if there are no samples yet.
+	 * @return the latency or NaN
+	 */
+	synchronized public double getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	/**
+	 * Returns the estimated time to fetch an image of 'pixels' pixels in
+	 * 'format', or NaN if there are not enough samples yet.
+	 * @param format MIME type of the image
+	 * @param pixels number of pixels of the image
+	 * @return the time in milliseconds or NaN
+	 */
+	synchronized public double estimateMillis(String format, long pixels) {
+		double perPixel = bytesPerPixel.getOrDefault(format, Double.NaN);
+		return latencyMillis + pixels * perPixel / bytesPerSecond * 1000;
+	}
+
+	private static double average(double average, double sample) {
+		return Double.isNaN(average) ? sample : average + ALPHA * (sample - average);
+	}
+
+	@Override
+	synchronized public String toString() {
+		return String.format("latency %.1f ms, bandwidth %.0f bytes/s, bytes per pixel %s", latencyMillis,
+				bytesPerSecond, bytesPerPixel);
+	}
+}
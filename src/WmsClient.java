@@ -0,0 +1,405 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the requests of a WMS service over one shared HttpClient, which keeps
+ * its connections alive for reuse and speaks HTTP/2 to servers that support
+ * it. Every request has a timeout, and results are delivered asynchronously.
+ * Cancelling a returned future aborts its exchange, so the blocking variants
+ * abort the exchange if the waiting thread is interrupted.
+ *
+ * Map requests can be hedged: a request still pending after a percentile of
+ * the recent response times is sent again, to the same or a secondary
+ * service, and the first response wins while the other exchange is
+ * cancelled. This bounds the tail latency of a slow server or connection at
+ * the cost of a few percent more requests.
+ *
+ * Every request goes through a ConcurrencyLimiter, which adapts the number of
+ * requests in flight to the time to the response headers and sends visible
+ * maps before prefetches.
+ */
+public class WmsClient {
+	private final String endpoint;
+	private final HttpClient client;
+	private final Duration timeout; // timeout of a request
+	private final ThroughputEstimator throughput; // of the responses
+	private final ConcurrencyLimiter limiter; // of the requests in flight
+	private final long[] latencies = new long[128]; // recent times of the map responses in nanoseconds
+	private int latencyCount; // number of map responses timed
+	private double hedgePercentile; // percentile of the response times after which a request is hedged, 0 for never
+	private String hedgeEndpoint; // URL of the service hedged requests go to
+
+	// Statistics
+	private long hedged, hedgeWins;
+
+	/**
+	 * Constructs a WmsClient for the WMS service at 'endpoint'.
+	 * @param endpoint URL of the WMS service without a query
+	 * @param connectTimeout timeout of opening a connection
+	 * @param timeout timeout of a request
+	 */
+	public WmsClient(String endpoint, Duration connectTimeout, Duration timeout) {
+		this.endpoint = endpoint;
+		this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).connectTimeout(connectTimeout)
+				.followRedirects(HttpClient.Redirect.NORMAL).build();
+		this.timeout = timeout;
+		this.throughput = new ThroughputEstimator();
+		this.limiter = new ConcurrencyLimiter(6, 1, 32);
+	}
+
+	/**
+	 * Constructs a WmsClient for the WMS service at 'endpoint' with a 5 second
+	 * connect timeout and a 30 second request timeout.
+	 * @param endpoint URL of the WMS service without a query
+	 */
+	public WmsClient(String endpoint) {
+		this(endpoint, Duration.ofSeconds(5), Duration.ofSeconds(30));
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Returns the estimator of the time of the responses of the service.
+	 * @return the throughput estimator
+	 */
+	public ThroughputEstimator getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * Returns the limiter of the requests in flight.
+	 * @return the concurrency limiter
+	 */
+	public ConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Hedge the map requests still pending after the 'percentile' percentile of
+	 * the recent response times by sending them again to 'secondaryEndpoint'.
+	 * Requests are only hedged once enough responses have been timed.
+	 * @param percentile percentile of the response times, e.g. 95, or 0 to never hedge
+	 * @param secondaryEndpoint URL of the service of the hedged requests, or null for this service
+	 */
+	synchronized public void setHedging(double percentile, String secondaryEndpoint) {
+		this.hedgePercentile = percentile;
+		this.hedgeEndpoint = secondaryEndpoint == null ? endpoint : secondaryEndpoint;
+	}
+
+	synchronized public long getHedged() {
+		return hedged;
+	}
+
+	synchronized public long getHedgeWins() {
+		return hedgeWins;
+	}
+
+	/**
+	 * Returns the URL of the GetCapabilities request.
+	 * @return the GetCapabilities URL
+	 */
+	public String getCapabilitiesURL() {
+		return endpoint + "?SERVICE=WMS&VERSION=1.1.1&REQUEST=GetCapabilities";
+	}
+
+	/**
+	 * Request the image of 'key' for display.
+	 * @param key key of the image
+	 * @return the future of the response body
+	 */
+	public CompletableFuture<byte[]> getMapAsync(MapKey key) {
+		return getMapAsync(key, ConcurrencyLimiter.Priority.VISIBLE);
+	}
+
+	/**
+	 * Request the image of 'key' with 'priority'.
+	 * @param key key of the image
+	 * @param priority priority of the request
+	 * @return the future of the response body, failing with a
+	 *         RejectedExecutionException if a prefetch is shed
+	 */
+	public CompletableFuture<byte[]> getMapAsync(MapKey key, ConcurrencyLimiter.Priority priority) {
+		long start = System.nanoTime();
+		String url = key.toURL(endpoint);
+		MapTrace.record(MapTrace.Stage.URL, start);
+
+		long delay;
+		String hedgeURL;
+		synchronized (this) {
+			delay = hedgeDelay();
+			hedgeURL = delay < 0 ? null : key.toURL(hedgeEndpoint);
+		}
+		CompletableFuture<byte[]> response = delay < 0 ? fetch(url, priority) : hedge(url, hedgeURL, delay, priority);
+		return cancelling(response.thenApply(body -> {
+			recordLatency(System.nanoTime() - start);
+			throughput.recordImage(key.getFormat(), (long) key.getWidth() * key.getHeight(), body.length);
+			return body;
+		}), response);
+	}
+
+	/**
+	 * Request 'url' and, unless it has been answered within 'delay'
+	 * nanoseconds, 'hedgeURL'. The first response wins and the other exchange
+	 * is cancelled; a failure only fails the result once the other request has
+	 * failed too, or if it comes before the hedge is sent.
+	 */
+	private CompletableFuture<byte[]> hedge(String url, String hedgeURL, long delay,
+			ConcurrencyLimiter.Priority priority) {
+		CompletableFuture<byte[]> result = new CompletableFuture<>();
+		CompletableFuture<byte[]> primary = fetch(url, priority);
+		CompletableFuture<CompletableFuture<byte[]>> secondary = new CompletableFuture<>(); // null if not sent
+
+		primary.whenComplete((body, e) -> {
+			if (e == null) {
+				if (result.complete(body))
+					secondary.thenAccept(hedge -> {
+						if (hedge != null)
+							hedge.cancel(true);
+					});
+			} else if (secondary.complete(null) || secondary.join() == null
+					|| secondary.join().isCompletedExceptionally()) {
+				// Failed before the hedge was sent, or after it failed too.
+				result.completeExceptionally(e);
+			}
+		});
+		CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+			if (result.isDone() || secondary.isDone())
+				return;
+			CompletableFuture<byte[]> hedge = fetch(hedgeURL, priority);
+			synchronized (this) {
+				hedged++;
+			}
+			hedge.whenComplete((body, e) -> {
+				if (e == null) {
+					if (result.complete(body)) {
+						synchronized (this) {
+							hedgeWins++;
+						}
+						primary.cancel(true);
+					}
+				} else if (primary.isCompletedExceptionally()) {
+					result.completeExceptionally(e);
+				}
+			});
+			if (!secondary.complete(hedge))
+				hedge.cancel(true); // the primary failed meanwhile
+		});
+
+		// Cancelling the result cancels both exchanges.
+		result.whenComplete((body, e) -> {
+			if (result.isCancelled()) {
+				primary.cancel(true);
+				secondary.thenAccept(hedge -> {
+					if (hedge != null)
+						hedge.cancel(true);
+				});
+				secondary.complete(null);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Returns the delay after which a map request is hedged in nanoseconds, or
+	 * -1 if requests are not hedged.
+	 */
+	private long hedgeDelay() {
+		int n = Math.min(latencyCount, latencies.length);
+		if (hedgePercentile <= 0 || n < 16)
+			return -1;
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(hedgePercentile / 100 * n);
+		return sorted[Math.max(0, Math.min(n - 1, rank - 1))];
+	}
+
+	synchronized private void recordLatency(long nanos) {
+		latencies[latencyCount++ % latencies.length] = nanos;
+		if (latencyCount == 2 * latencies.length)
+			latencyCount = latencies.length;
+	}
+
+	/**
+	 * Request the capabilities of the service.
+	 * @return the future of the response body
+	 */
+	public CompletableFuture<byte[]> getCapabilitiesAsync() {
+		return fetch(getCapabilitiesURL(), ConcurrencyLimiter.Priority.VISIBLE);
+	}
+
+	/**
+	 * Request the capabilities of the service unless they have not changed
+	 * since the response with the validators 'etag' and 'lastModified'.
+	 * @param etag ETag of the cached response or null
+	 * @param lastModified Last-Modified of the cached response or null
+	 * @return the future of the response, with status 200 and the new
+	 *         capabilities or status 304 if the cached ones are still valid
+	 */
+	public CompletableFuture<HttpResponse<byte[]>> revalidateCapabilities(String etag, String lastModified) {
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(getCapabilitiesURL())).timeout(timeout).GET();
+		if (etag != null)
+			request.header("If-None-Match", etag);
+		if (lastModified != null)
+			request.header("If-Modified-Since", lastModified);
+		return send(request.build(), true, ConcurrencyLimiter.Priority.VISIBLE);
+	}
+
+	/**
+	 * Request the image of 'key' and wait for it.
+	 * @param key key of the image
+	 * @return the response body
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public byte[] getMap(MapKey key) throws IOException, InterruptedException {
+		return await(getMapAsync(key));
+	}
+
+	/**
+	 * Request the image of 'key' with 'priority' and wait for it.
+	 * @param key key of the image
+	 * @param priority priority of the request
+	 * @return the response body
+	 * @throws IOException, caused by a RejectedExecutionException if a prefetch is shed
+	 * @throws InterruptedException
+	 */
+	public byte[] getMap(MapKey key, ConcurrencyLimiter.Priority priority) throws IOException, InterruptedException {
+		return await(getMapAsync(key, priority));
+	}
+
+	/**
+	 * Request the capabilities of the service and wait for them.
+	 * @return the response body
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public byte[] getCapabilities() throws IOException, InterruptedException {
+		return await(getCapabilitiesAsync());
+	}
+
+	/**
+	 * Send a GET request to 'url'.
+	 * @param url URL of the request
+	 * @param priority priority of the request
+	 * @return the future of the response body, failing with an IOException if
+	 *         the status is not 200
+	 */
+	private CompletableFuture<byte[]> fetch(String url, ConcurrencyLimiter.Priority priority) {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(url)).timeout(timeout).GET().build();
+		CompletableFuture<HttpResponse<byte[]>> response = send(request, false, priority);
+		return cancelling(response.thenApply(HttpResponse::body), response);
+	}
+
+	/**
+	 * Send a request once the limiter allows it, and tell the limiter how long
+	 * the response took or that it was dropped.
+	 * @param request the request
+	 * @param notModified whether a 304 response is expected
+	 * @param priority priority of the request
+	 * @return the future of the response, failing with an IOException if the
+	 *         status is not 200, or 304 if expected
+	 */
+	private CompletableFuture<HttpResponse<byte[]>> send(HttpRequest request, boolean notModified,
+			ConcurrencyLimiter.Priority priority) {
+		MapTrace trace = MapTrace.current();
+		CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+		CompletableFuture<Void> permit = limiter.acquire(priority);
+		cancelling(result, permit);
+
+		permit.whenComplete((granted, denied) -> {
+			if (denied != null) {
+				result.completeExceptionally(denied);
+				return;
+			}
+			if (result.isDone()) {
+				limiter.release(-1); // cancelled while queued
+				return;
+			}
+
+			// Time the response headers and the body for the limiter, the
+			// throughput estimate and the trace of the request.
+			long sent = System.nanoTime();
+			long[] ttfb = { -1 };
+			HttpResponse.BodyHandler<byte[]> body = info -> {
+				long headers = System.nanoTime();
+				ttfb[0] = headers - sent;
+				if (trace != null)
+					trace.add(MapTrace.Stage.TTFB, headers - sent);
+				return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), bytes -> {
+					long end = System.nanoTime();
+					if (trace != null)
+						trace.add(MapTrace.Stage.DOWNLOAD, end - headers);
+					throughput.recordResponse(headers - sent, bytes.length, end - headers);
+					return bytes;
+				});
+			};
+
+			CompletableFuture<HttpResponse<byte[]>> exchange = client.sendAsync(request, body);
+			cancelling(result, exchange);
+			exchange.whenComplete((response, e) -> {
+				if (e != null) {
+					// A cancelled request says nothing of the server, a failed one
+					// is taken as overload.
+					if (result.isCancelled() || exchange.isCancelled())
+						limiter.release(-1);
+					else
+						limiter.drop();
+					result.completeExceptionally(e);
+					return;
+				}
+				int status = response.statusCode();
+				if (status == 429 || status >= 500)
+					limiter.drop();
+				else
+					limiter.release(ttfb[0]);
+				if (status != 200 && !(notModified && status == 304))
+					result.completeExceptionally(new IOException("HTTP " + status + " from " + request.uri()));
+				else
+					result.complete(response);
+			});
+		});
+		return result;
+	}
+
+	/**
+	 * Returns 'dependent', cancelling 'source' when it is cancelled, so that
+	 * cancelling the end of a chain of stages aborts the exchange at its start.
+	 */
+	private static <T> CompletableFuture<T> cancelling(CompletableFuture<T> dependent, CompletableFuture<?> source) {
+		dependent.whenComplete((value, e) -> {
+			if (dependent.isCancelled())
+				source.cancel(true);
+		});
+		return dependent;
+	}
+
+	/**
+	 * Wait for a response, cancelling its exchange if interrupted.
+	 */
+	private static byte[] await(CompletableFuture<byte[]> response) throws IOException, InterruptedException {
+		try {
+			return response.get();
+		} catch (InterruptedException e) {
+			response.cancel(true);
+			throw e;
+		} catch (CancellationException e) {
+			throw new IOException("Request cancelled", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -1,70 +1,244 @@
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class WorkDistributor {
 
 	public static final int PORT = 3126;
+	public static final int WORKERS = 16; // handlers running at once
+	public static final int QUEUE_CAPACITY = 64; // admitted, waiting handlers
+	public static final long DUPLICATE_WINDOW = 10000; // ms
+	public static final int REGISTRATIONS_PER_SECOND = 50;
 	public static boolean verboseMode = false;
 
+	// registration statistics
+	static final AtomicLong received = new AtomicLong();
+	static final AtomicLong malformed = new AtomicLong();
+	static final AtomicLong duplicates = new AtomicLong();
+	static final AtomicLong rateLimited = new AtomicLong();
+	static final AtomicLong rejected = new AtomicLong();
+	static final AtomicLong admitted = new AtomicLong();
+
+	/**
+	 * The registration statistics, registered as the MBean
+	 * WorkDistributor:type=Registrations so that they can be read while the
+	 * distributor runs.
+	 */
+	public interface RegistrationsMBean {
+		long getReceived();
+
+		long getAdmitted();
+
+		long getMalformed();
+
+		long getDuplicates();
+
+		long getRateLimited();
+
+		long getRejected();
+	}
+
+	public static class Registrations implements RegistrationsMBean {
+		public long getReceived() {
+			return received.get();
+		}
+
+		public long getAdmitted() {
+			return admitted.get();
+		}
+
+		public long getMalformed() {
+			return malformed.get();
+		}
+
+		public long getDuplicates() {
+			return duplicates.get();
+		}
+
+		public long getRateLimited() {
+			return rateLimited.get();
+		}
+
+		public long getRejected() {
+			return rejected.get();
+		}
+	}
+
 	public static void main(String[] args) throws Exception {
 		if (args.length == 1 && args[0].equals("verbose")) {
 			verboseMode = true;
 		}
-		DatagramSocket ds = new DatagramSocket(PORT);
-		ds.setSoTimeout(500000); // 500 sekuntia
 		try {
-			while (true) {
-				byte[] byteArea = new byte[256];
-				DatagramPacket receivedPacket = new DatagramPacket(byteArea,
-						byteArea.length);
-				ds.receive(receivedPacket);
-				if (verboseMode) {
-					System.out.println("Connection from "
-							+ receivedPacket.getAddress() + " port "
-							+ receivedPacket.getPort());
-				}
-				// what was received?
-				String message = new String(receivedPacket.getData(), 0,
-						receivedPacket.getLength());
-				int contactPort = -1;
-				try {
-					contactPort = Integer.parseInt(message.trim());
-				} catch (NumberFormatException e) {
-					System.err
-							.println("UDP error, message should represent number, message = "
-									+ message);
-				}
-				if (contactPort < 1024 || contactPort > 65535) {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new Registrations(),
+					new ObjectName("WorkDistributor:type=Registrations"));
+		} catch (JMException e) {
+			System.err.println("Statistics not registered: " + e);
+		}
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(PORT));
+		channel.configureBlocking(false);
+		Selector selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		// one buffer for every packet
+		ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+		// a fixed set of workers behind a bounded admission queue
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKERS,
+				WORKERS, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+				new ThreadPoolExecutor.AbortPolicy());
+		// last admission time of each (address, port) pair
+		HashMap<InetSocketAddress, Long> recent = new HashMap<InetSocketAddress, Long>();
+		double tokens = REGISTRATIONS_PER_SECOND;
+		long refilled = System.currentTimeMillis();
+		try {
+			while (selector.select(500000) > 0) { // 500 sekuntia
+				selector.selectedKeys().clear();
+				SocketAddress sender;
+				while ((sender = channel.receive(buffer)) != null) {
+					buffer.flip();
+					received.incrementAndGet();
+					InetSocketAddress from = (InetSocketAddress) sender;
 					if (verboseMode) {
-						System.out.println("Errorneous suggestion for port '"
-								+ message + "'");
-						System.out.println("Contact attempt from "
-								+ ds.getInetAddress() + " ignored.");
+						System.out.println("Connection from "
+								+ from.getAddress() + " port "
+								+ from.getPort());
+					}
+					// what was received?
+					int contactPort = parsePort(buffer);
+					if (contactPort < 1024 || contactPort > 65535) {
+						malformed.incrementAndGet();
+						if (verboseMode) {
+							buffer.rewind();
+							byte[] bytes = new byte[buffer.remaining()];
+							buffer.get(bytes);
+							System.out.println("Errorneous suggestion for port '"
+									+ new String(bytes) + "'");
+							System.out.println("Contact attempt from "
+									+ from.getAddress() + " ignored.");
+						}
+						buffer.clear();
+						continue; // jump over the rest
+					}
+					buffer.clear();
+					long now = System.currentTimeMillis();
+					// drop repeats of a registration that was just admitted
+					InetSocketAddress key = new InetSocketAddress(
+							from.getAddress(), contactPort);
+					Long last = recent.get(key);
+					if (last != null && now - last < DUPLICATE_WINDOW) {
+						duplicates.incrementAndGet();
+						if (verboseMode) {
+							System.out.println("Duplicate registration from "
+									+ from.getAddress() + " ignored.");
+						}
+						continue;
+					}
+					// token bucket limiting the admission rate
+					tokens = Math.min(REGISTRATIONS_PER_SECOND, tokens
+							+ (now - refilled) * REGISTRATIONS_PER_SECOND / 1000.0);
+					refilled = now;
+					if (tokens < 1) {
+						rateLimited.incrementAndGet();
+						if (verboseMode) {
+							System.out.println("Registration from "
+									+ from.getAddress() + " rate limited.");
+						}
+						continue;
+					}
+					tokens--;
+					try {
+						executor.execute(new WorkDistributor.WorkDistributionHandler(
+								from.getAddress(), contactPort));
+						admitted.incrementAndGet();
+						recent.put(key, now);
+					} catch (RejectedExecutionException e) {
+						rejected.incrementAndGet();
+						if (verboseMode) {
+							System.out.println("Admission queue full, registration from "
+									+ from.getAddress() + " rejected.");
+						}
+					}
+					if (recent.size() > 4 * QUEUE_CAPACITY) {
+						recent.values().removeIf(t -> now - t >= DUPLICATE_WINDOW);
 					}
-					continue; // jump over the rest
 				}
-				new WorkDistributor.WorkDistributionHandler(
-						receivedPacket.getAddress(), contactPort).start();
 			} // while
-		} catch (InterruptedIOException e) {
+		} finally {
+			executor.shutdown();
+			selector.close();
+			channel.close();
+			printStatistics();
 		}
 	} // main
 
+	/**
+	 * Parses a port number from the ASCII digits in the buffer, ignoring
+	 * surrounding whitespace. Returns -1 if the contents are not a number.
+	 */
+	static int parsePort(ByteBuffer buffer) {
+		int port = 0;
+		int digits = 0;
+		boolean trailing = false;
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (b >= '0' && b <= '9' && !trailing) {
+				if (++digits > 5) {
+					return -1;
+				}
+				port = port * 10 + (b - '0');
+			} else if (b <= ' ') {
+				trailing = digits > 0;
+			} else {
+				return -1;
+			}
+		}
+		return digits == 0 ? -1 : port;
+	}
+
+	static void printStatistics() {
+		System.out.println("Registrations: received " + received.get()
+				+ ", admitted " + admitted.get() + ", malformed "
+				+ malformed.get() + ", duplicate " + duplicates.get()
+				+ ", rate limited " + rateLimited.get() + ", rejected "
+				+ rejected.get());
+	}
+
 	static class WorkDistributionHandler extends Thread {
-		public static final int MAXCLIENTS = 10;
 		private final int clientPort;
 		private final InetAddress clientAddress;
-		private final int[] portNumbers = new int[MAXCLIENTS];
-		private final Socket[] calculators = new Socket[MAXCLIENTS];
-		private final ObjectOutputStream[] numberStreams = new ObjectOutputStream[MAXCLIENTS];
+		// the adders by index, growing as the client adds adders
+		private final List<Integer> portNumbers = new ArrayList<Integer>();
+		// null once the stream has ended or the adder was retired
+		private final List<NumberStream> numberStreams = new ArrayList<NumberStream>();
+		private final Random random = new Random();
+		private int[] table; // sum sent to each adder
+		private int sum; // sum of the numbers sent
+		private int lkm; // amount of numbers sent
 
 		public WorkDistributionHandler(InetAddress a, int p) {
 			clientPort = p;
@@ -100,24 +274,12 @@ public class WorkDistributor {
 				} else {
 					// try to make the socket connection
 					for (int i = 0; i < clients; i++) {
-						if (verboseMode) {
-							System.out.println("Trying to connect to "
-									+ portNumbers[i]);
-						}
-						calculators[i] = new Socket(clientAddress,
-								portNumbers[i]);
-						numberStreams[i] = new ObjectOutputStream(
-								calculators[i].getOutputStream());
-						if (verboseMode) {
-							System.out.println("Connection to " + i
-									+ "'th adder created.");
-						}
+						connectAdder(portNumbers.get(i));
 						sleep(100);
 					}
-					generateTraffic(numberStreams, clients, oOut, oIn);
-					for (int i = 0; i < clients; i++) {
-						numberStreams[i].close();
-						calculators[i].close();
+					generateTraffic(clients, oOut, oIn);
+					for (int i = 0; i < numberStreams.size(); i++) {
+						closeAdder(i);
 					}
 					if (verboseMode) {
 						System.out
@@ -139,10 +301,119 @@ public class WorkDistributor {
 			}
 		} // run
 
+		/**
+		 * Connects to the adder at 'port' and adds it after the others.
+		 */
+		private void connectAdder(int port) throws IOException {
+			if (verboseMode) {
+				System.out.println("Trying to connect to " + port);
+			}
+			numberStreams.add(new NumberStream(port, random.nextLong()));
+			if (verboseMode) {
+				System.out.println("Connection to " + (numberStreams.size() - 1)
+						+ "'th adder created.");
+			}
+		}
+
+		/**
+		 * Closes the connection to the i'th adder, after which no more
+		 * numbers are distributed to it.
+		 */
+		private void closeAdder(int i) throws IOException {
+			if (numberStreams.get(i) == null) {
+				return;
+			}
+			numberStreams.get(i).close();
+			numberStreams.set(i, null);
+		}
+
+		/**
+		 * Ends the stream of the i'th adder with 0 and closes the connection.
+		 */
+		private void endStream(int i) throws IOException {
+			numberStreams.get(i).write(0);
+			closeAdder(i);
+		}
+
+		/**
+		 * Asks the client for 'count' more adders with command 13 and
+		 * connects to the ports it answers with. Returns true if the client
+		 * did not answer with 'count' ports.
+		 */
+		private boolean addAdders(int count, ObjectOutputStream masterOut,
+				ObjectInputStream masterIn) throws IOException {
+			masterOut.writeInt(13);
+			masterOut.writeInt(count);
+			masterOut.flush();
+			int answerRead = masterIn.readInt();
+			if (answerRead != count) {
+				System.err.println("Error in client: wrong answer to query (13)."
+						+ " Expecting " + count + " got " + answerRead + ".");
+				return true;
+			}
+			for (int i = 0; i < count; i++) {
+				int p = masterIn.readInt();
+				portNumbers.add(p);
+				connectAdder(p);
+			}
+			return false;
+		}
+
+		/**
+		 * Sends 'rounds' random numbers to every adder whose stream is still
+		 * open.
+		 */
+		private void sendNumbers(int rounds) throws IOException {
+			for (int i = 0; i < rounds; i++) {
+				for (int j = 0; j < table.length; j++) {
+					NumberStream stream = numberStreams.get(j);
+					if (stream == null) {
+						continue;
+					}
+					int number = (int) (Math.random() * 40) - 20;
+					if (number == 0) {
+						number++;
+					}
+					stream.write(number);
+					table[j] += number;
+					lkm++;
+					sum += number;
+				}
+			}
+		}
+
+		/**
+		 * Returns the index of the largest sum in 'table' of the adders not
+		 * retired.
+		 */
+		private static int biggest(int[] table, boolean[] retired) {
+			int biggest = -1;
+			for (int i = 0; i < table.length; i++) {
+				if (!retired[i] && (biggest < 0 || table[i] > table[biggest])) {
+					biggest = i;
+				}
+			}
+			return biggest;
+		}
+
 		private boolean makeTest(int question, int answer,
 				ObjectOutputStream masterOut, ObjectInputStream masterIn)
 				throws IOException {
 			masterOut.writeInt(question);
+			return checkAnswer(question, answer, masterOut, masterIn);
+		}
+
+		private boolean makeTest(int question, int argument, int answer,
+				ObjectOutputStream masterOut, ObjectInputStream masterIn)
+				throws IOException {
+			masterOut.writeInt(question);
+			masterOut.writeInt(argument);
+			return checkAnswer(question, answer, masterOut, masterIn);
+		}
+
+		private boolean checkAnswer(int question, int answer,
+				ObjectOutputStream masterOut, ObjectInputStream masterIn)
+				throws IOException {
 			masterOut.flush();
 			int answerRead = masterIn.readInt();
 			if (answerRead == -1) {
@@ -159,19 +430,14 @@ public class WorkDistributor {
 			return false;
 		}
 
-		private void generateTraffic(ObjectOutputStream[] streams, int calcs,
-				ObjectOutputStream masterOut, ObjectInputStream masterIn) {
-			int table[] = new int[calcs];
-			int sum = 0;
-			int lkm = 0;
-			int answer = 0;
-			for (int i = 0; i < calcs; i++) {
-				table[i] = 0;
-			}
+		private void generateTraffic(int calcs, ObjectOutputStream masterOut,
+				ObjectInputStream masterIn) {
+			table = new int[calcs];
+			sum = 0;
+			lkm = 0;
 			int biggest = (int) (Math.random() * calcs);
 			try {
-				streams[biggest].writeInt(2);
-				streams[biggest].flush();
+				numberStreams.get(biggest).write(2);
 				sum = 2;
 				lkm = 1;
 				table[biggest] = 2;
@@ -190,28 +456,11 @@ public class WorkDistributor {
 					System.out.println("Making test 3 in set 1");
 				}
 				makeTest(3, lkm, masterOut, masterIn);
-				for (int i = 0; i < 9; i++) {
-					for (int j = 0; j < calcs; j++) {
-						int number = (int) (Math.random() * 40) - 20;
-						if (number == 0) {
-							number++;
-						}
-						streams[j].writeInt(number);
-						streams[j].flush();
-						table[j] += number;
-						lkm++;
-						sum += number;
-					}
-				}
-				for (int j = 0; j < calcs; j++) {
-					streams[j].flush();
-				}
-				biggest = 0;
-				for (int i = 1; i < calcs; i++) {
-					if (table[i] > table[biggest]) {
-						biggest = i;
-					}
-				}
+				// lose the connection to an adder; its stream resumes with
+				// the next number
+				numberStreams.get((int) (Math.random() * calcs)).drop();
+				sendNumbers(9);
+				biggest = biggest(table, new boolean[calcs]);
 				// test 4
 				if (verboseMode) {
 					System.out.println("Making test 1 in set 2");
@@ -238,11 +487,9 @@ public class WorkDistributor {
 					System.out.println("Making test 3 in set 2");
 				}
 				makeTest(3, lkm, masterOut, masterIn);
-				streams[0].writeInt(0);
-				streams[0].flush();
+				endStream(0);
 				if (calcs != 1) {
-					streams[calcs - 1].writeInt(0);
-					streams[calcs - 1].flush();
+					endStream(calcs - 1);
 				}
 				// test 7
 				if (verboseMode) {
@@ -259,6 +506,60 @@ public class WorkDistributor {
 					System.out.println("Making test 3 in set 3");
 				}
 				makeTest(3, lkm, masterOut, masterIn);
+				// add adders while the traffic runs and distribute to them too
+				int added = (int) (Math.random() * 3) + 1;
+				if (verboseMode) {
+					System.out.println("Adding " + added + " adders in set 4");
+				}
+				if (addAdders(added, masterOut, masterIn)) {
+					return;
+				}
+				table = Arrays.copyOf(table, calcs + added);
+				boolean[] retired = new boolean[table.length];
+				sendNumbers(9);
+				biggest = biggest(table, retired);
+				// test 10
+				if (verboseMode) {
+					System.out.println("Making test 1 in set 4");
+				}
+				makeTest(1, sum, masterOut, masterIn);
+				// test 11
+				if (verboseMode) {
+					System.out.println("Making test 2 in set 4");
+				}
+				makeTest(2, biggest + 1, masterOut, masterIn);
+				// test 12
+				if (verboseMode) {
+					System.out.println("Making test 3 in set 4");
+				}
+				makeTest(3, lkm, masterOut, masterIn);
+				// retire an adder and stop distributing to it; its sum and
+				// numbers still count in the totals
+				int retiring = (int) (Math.random() * table.length);
+				if (verboseMode) {
+					System.out.println("Retiring adder " + (retiring + 1)
+							+ " in set 5");
+				}
+				makeTest(14, retiring + 1, 0, masterOut, masterIn);
+				retired[retiring] = true;
+				closeAdder(retiring);
+				sendNumbers(9);
+				biggest = biggest(table, retired);
+				// test 13
+				if (verboseMode) {
+					System.out.println("Making test 1 in set 5");
+				}
+				makeTest(1, sum, masterOut, masterIn);
+				// test 14
+				if (verboseMode) {
+					System.out.println("Making test 2 in set 5");
+				}
+				makeTest(2, biggest + 1, masterOut, masterIn);
+				// test 15
+				if (verboseMode) {
+					System.out.println("Making test 3 in set 5");
+				}
+				makeTest(3, lkm, masterOut, masterIn);
 			} catch (IOException e) {
 				System.err
 						.println("Received exception while testing ... aborting.");
@@ -307,7 +608,7 @@ public class WorkDistributor {
 					aborting = true;
 					break;
 				}
-				portNumbers[i] = p;
+				portNumbers.add(p);
 				if (verboseMode) {
 					System.out.println("Received " + i + "'th port number.");
 				}
@@ -315,6 +616,91 @@ public class WorkDistributor {
 			return aborting;
 		} // receivePortNumbers
 
+		/**
+		 * A stream of numbers to an adder that survives the loss of its
+		 * connection. Every connection opens with a hello frame carrying the
+		 * id of the stream, which the adder answers with the amount of
+		 * numbers of the stream it has received. After a lost connection the
+		 * stream reconnects and sends the numbers after those again.
+		 */
+		private class NumberStream {
+			private final int port;
+			private final long id;
+			private int[] sent = new int[64]; // the numbers sent, in order
+			private int count; // amount of numbers sent
+			private Socket socket;
+			private ObjectOutputStream out;
+
+			NumberStream(int port, long id) throws IOException {
+				this.port = port;
+				this.id = id;
+				connect();
+			}
+
+			/**
+			 * Connects to the adder and resends the numbers it has not
+			 * received.
+			 */
+			private void connect() throws IOException {
+				socket = new Socket(clientAddress, port);
+				socket.setSoTimeout(3000);
+				out = new ObjectOutputStream(socket.getOutputStream());
+				out.writeInt(Adder.FRAME_MARKER);
+				out.writeInt(Adder.FRAME_HELLO);
+				out.writeLong(id);
+				out.flush();
+				ObjectInputStream in = new ObjectInputStream(
+						socket.getInputStream());
+				long received = in.readLong();
+				if (received < 0 || received > count) {
+					throw new IOException("Adder at port " + port
+							+ " acknowledged " + received + " of " + count
+							+ " numbers.");
+				}
+				for (int i = (int) received; i < count; i++) {
+					out.writeInt(sent[i]);
+				}
+				out.flush();
+				if (verboseMode && count > 0) {
+					System.out.println("Resumed the stream to port " + port
+							+ " after " + received + " of " + count
+							+ " numbers.");
+				}
+			}
+
+			/**
+			 * Sends 'number', reconnecting once if the connection is lost.
+			 */
+			void write(int number) throws IOException {
+				if (count == sent.length) {
+					sent = Arrays.copyOf(sent, 2 * count);
+				}
+				sent[count++] = number;
+				try {
+					out.writeInt(number);
+					out.flush();
+				} catch (IOException e) {
+					System.err.println("Lost the connection to the adder at port "
+							+ port + ": " + e + " ... resuming.");
+					socket.close();
+					connect();
+				}
+			}
+
+			/**
+			 * Closes the connection without ending the stream, as if it was
+			 * lost.
+			 */
+			void drop() throws IOException {
+				socket.close();
+			}
+
+			void close() throws IOException {
+				out.close();
+				socket.close();
+			}
+		} // class NumberStream
+
 	} // class WorkDistributionHandler
 
 } // class WorkDistributor